@@ -1,13 +1,956 @@
-import java.io.*;
-import java.nio.charset.StandardCharsets;
-import java.util.StringTokenizer;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
-@SuppressWarnings("StatementWithEmptyBody")
 public class AVRDisassembler {
-  private ByteArrayOutputStream bout = new ByteArrayOutputStream();
-  private PrintStream           pOut = new PrintStream(bout);
+  // Operand formats (how the operands are extracted from the opcode and printed)
+  private static final int      F_NONE = 0;       // No operands (also used for "unknown")
+  private static final int      F_RD = 1;         // rd
+  private static final int      F_ST = 2;         // ptr,rr
+  private static final int      F_BRANCH = 3;     // 7 bit relative address
+  private static final int      F_RD_RR = 4;      // rd,rr
+  private static final int      F_RD_BIT = 5;     // rd,b
+  private static final int      F_LDD = 6;        // rd,ptr+q
+  private static final int      F_STD = 7;        // ptr+q,rr
+  private static final int      F_LD = 8;         // rd,ptr
+  private static final int      F_REL = 9;        // 12 bit relative address
+  private static final int      F_IN = 10;        // rd,0xAA
+  private static final int      F_OUT = 11;       // 0xAA,rr
+  private static final int      F_IMM8 = 12;      // rd,0xKK (r16-r31)
+  private static final int      F_LDS7 = 13;      // rd,0xKK (AVRrc 16 bit lds)
+  private static final int      F_STS7 = 14;      // 0xKK,rr (AVRrc 16 bit sts)
+  private static final int      F_SREG = 15;      // s
+  private static final int      F_IO_BIT = 16;    // 0xAA,b
+  private static final int      F_ADIW = 17;      // rd+1:rd,0xKK
+  private static final int      F_FMUL = 18;      // rd,rr (r16-r23)
+  private static final int      F_MOVW = 19;      // rd+1:rd,rr+1:rr
+  private static final int      F_MULS = 20;      // rd,rr (r16-r31)
+  private static final int      F_LDS = 21;       // rd,0xKKKK (2 words)
+  private static final int      F_STS = 22;       // 0xKKKK,rr (2 words)
+  private static final int      F_JMP = 23;       // 22 bit absolute address (2 words)
+  // Control flow classes (how execution continues after an instruction)
+  static final int              FLOW_NEXT = 0;      // Continues with the next instruction
+  static final int              FLOW_SKIP = 1;      // cpse, sbrc, sbrs, sbic, sbis (next, or the one after it)
+  static final int              FLOW_BRANCH = 2;    // Conditional branch (target, or next)
+  static final int              FLOW_JUMP = 3;      // rjmp, jmp (target only)
+  static final int              FLOW_CALL = 4;      // rcall, call, icall, eicall (target, then next)
+  static final int              FLOW_RETURN = 5;    // ret, reti
+  static final int              FLOW_INDIRECT = 6;  // ijmp, eijmp (target not known)
+  static final int              FLOW_INVALID = 7;   // Opcode that isn't an instruction
+  // Pointer operands used by the ld/st family
+  private static final String[] PTRS = {"", "X", "X+", "-X", "Y", "Y+", "-Y", "Z", "Z+", "-Z"};
+  // Decode table: mnemonic index (bits 0-7), format (bits 8-12), pointer index (bits 13-16), words (bits 17-18)
+  // and control flow class (bits 19-21)
+  private static final int[]    DECODE;
+  private static final String[] MNEMONICS;
+  private static final char[]   HEX = "0123456789ABCDEF".toCharArray();
+  private static final String   EOL = System.lineSeparator();
+  private static final int      CHUNK_WORDS = 8192;   // Words decoded by each task of a parallel decode
+  private static final int      CHUNK_LINES = 4096;   // Instructions formatted by each task of a parallel dAsm
+  private final Appendable      out;
+  private CodeMap               labels;         // Set while formatting a CodeMap, so targets print as labels
+  private char[]                line = new char[80];
+  private CharBuffer            lineView = CharBuffer.wrap(line);
   private int                   cursor;
 
+  /**
+   * Create a disassembler that collects its output in memory (see getDisAsm())
+   */
+  AVRDisassembler () {
+    this(new StringBuilder());
+  }
+
+  /**
+   * Create a disassembler that writes its output to out as each line is completed
+   * @param out destination for output, such as a StringBuilder, or a Writer (a Writer that throws an
+   * IOException causes an UncheckedIOException)
+   */
+  AVRDisassembler (Appendable out) {
+    this.out = out;
+  }
+
+  /*
+   *  Instruction patterns as {mask, match, format, pointer} followed by the mnemonic, in priority order
+   *  (the first pattern that matches an opcode decodes it).  The table is built once, at class load, by
+   *  applying the patterns from lowest to highest priority, so each opcode ends up with the first match.
+   */
+  static {
+    List<Object[]> pats = new ArrayList<>();
+    // 2 word instructions
+    pats.add(new Object[] {0xFE0F, 0x9000, F_LDS, 0, "lds"});       // 1001 000d dddd 0000 kkkk...
+    pats.add(new Object[] {0xFE0F, 0x9200, F_STS, 0, "sts"});       // 1001 001d dddd 0000 kkkk...
+    pats.add(new Object[] {0xFE0E, 0x940C, F_JMP, 0, "jmp"});       // 1001 010k kkkk 110k kkkk...
+    pats.add(new Object[] {0xFE0E, 0x940E, F_JMP, 0, "call"});      // 1001 010k kkkk 111k kkkk...
+    // No operands
+    String[][] noArgs = {
+      {"0000", "nop"}, {"9408", "sec"}, {"9409", "ijmp"}, {"9418", "sez"}, {"9419", "eijmp"}, {"9428", "sen"},
+      {"9438", "sev"}, {"9448", "ses"}, {"9458", "seh"}, {"9468", "set"}, {"9478", "sei"}, {"9488", "clc"},
+      {"9498", "clz"}, {"94A8", "cln"}, {"94B8", "clv"}, {"94C8", "cls"}, {"94D8", "clh"}, {"94E8", "clt"},
+      {"94F8", "cli"}, {"9508", "ret"}, {"9509", "icall"}, {"9518", "reti"}, {"9519", "eicall"},
+      {"9588", "sleep"}, {"9598", "break"}, {"95A8", "wdr"}, {"95C8", "lpm"}, {"95D8", "elpm"},
+      {"95E8", "spm"}, {"95F8", "spm"},
+    };
+    for (String[] inst : noArgs) {
+      pats.add(new Object[] {0xFFFF, Integer.parseInt(inst[0], 16), F_NONE, 0, inst[1]});
+    }
+    // 1001 010d dddd xxxx (and pop, push)
+    String[][] logic = {
+      {"900F", "pop"}, {"920F", "push"}, {"9400", "com"}, {"9401", "neg"}, {"9402", "swap"}, {"9403", "inc"},
+      {"9405", "asr"}, {"9406", "lsr"}, {"9407", "ror"}, {"940A", "dec"},
+    };
+    for (String[] inst : logic) {
+      pats.add(new Object[] {0xFE0F, Integer.parseInt(inst[0], 16), F_RD, 0, inst[1]});
+    }
+    // 100x 001r rrrr xxxx
+    String[][] store = {
+      {"8200", "st", "Z"}, {"8208", "st", "Y"}, {"9201", "st", "Z+"}, {"9202", "st", "-Z"}, {"9204", "xch", "Z"},
+      {"9205", "las", "Z"}, {"9206", "lac", "Z"}, {"9207", "lat", "Z"}, {"9209", "st", "Y+"}, {"920A", "st", "-Y"},
+      {"920C", "st", "X"}, {"920D", "st", "X+"}, {"920E", "st", "-X"},
+    };
+    for (String[] inst : store) {
+      pats.add(new Object[] {0xFE0F, Integer.parseInt(inst[0], 16), F_ST, ptr(inst[2]), inst[1]});
+    }
+    // 1111 0xkk kkkk kxxx
+    String[] branches = {"brcs", "breq", "brmi", "brvs", "brlt", "brhs", "brts", "brie",
+                         "brcc", "brne", "brpl", "brvc", "brge", "brhc", "brtc", "brid"};
+    for (int ii = 0; ii < branches.length; ii++) {
+      pats.add(new Object[] {0xFC07, 0xF000 + ((ii & 8) << 7) + (ii & 7), F_BRANCH, 0, branches[ii]});
+    }
+    // xxxx xxrd dddd rrrr
+    String[][] arith = {
+      {"0400", "cpc"}, {"0800", "sbc"}, {"0C00", "add"}, {"1000", "cpse"}, {"1400", "cp"}, {"1800", "sub"},
+      {"1C00", "adc"}, {"2000", "and"}, {"2400", "eor"}, {"2800", "or"}, {"2C00", "mov"}, {"9C00", "mul"},
+    };
+    for (String[] inst : arith) {
+      pats.add(new Object[] {0xFC00, Integer.parseInt(inst[0], 16), F_RD_RR, 0, inst[1]});
+    }
+    // 1111 1xxd dddd 0bbb
+    pats.add(new Object[] {0xFE08, 0xF800, F_RD_BIT, 0, "bld"});
+    pats.add(new Object[] {0xFE08, 0xFA00, F_RD_BIT, 0, "bst"});
+    pats.add(new Object[] {0xFE08, 0xFC00, F_RD_BIT, 0, "sbrc"});
+    pats.add(new Object[] {0xFE08, 0xFE00, F_RD_BIT, 0, "sbrs"});
+    // 10q0 qqxd dddd yqqq
+    pats.add(new Object[] {0xD208, 0x8000, F_LDD, ptr("Z+"), "ldd"});
+    pats.add(new Object[] {0xD208, 0x8008, F_LDD, ptr("Y+"), "ldd"});
+    pats.add(new Object[] {0xD208, 0x8200, F_STD, ptr("Z+"), "std"});
+    pats.add(new Object[] {0xD208, 0x8208, F_STD, ptr("Y+"), "std"});
+    // 100x 000d dddd xxxx
+    String[][] load = {
+      {"8000", "ld", "Z"}, {"8008", "ld", "Y"}, {"9001", "ld", "Z+"}, {"9002", "ld", "-Z"}, {"9004", "lpm", "Z"},
+      {"9005", "lpm", "Z+"}, {"9006", "elpm", "Z"}, {"9007", "elpm", "Z+"}, {"9009", "ld", "Y+"},
+      {"900A", "ld", "-Y"}, {"900C", "ld", "X"}, {"900D", "ld", "X+"}, {"900E", "ld", "-X"},
+    };
+    for (String[] inst : load) {
+      pats.add(new Object[] {0xFE0F, Integer.parseInt(inst[0], 16), F_LD, ptr(inst[2]), inst[1]});
+    }
+    pats.add(new Object[] {0xF000, 0xC000, F_REL, 0, "rjmp"});       // 1100 kkkk kkkk kkkk
+    pats.add(new Object[] {0xF000, 0xD000, F_REL, 0, "rcall"});      // 1101 kkkk kkkk kkkk
+    pats.add(new Object[] {0xF800, 0xB000, F_IN, 0, "in"});          // 1011 0AAd dddd AAAA
+    pats.add(new Object[] {0xF800, 0xB800, F_OUT, 0, "out"});        // 1011 1AAr rrrr AAAA
+    // xxxx KKKK dddd KKKK
+    String[][] imd = {{"3000", "cpi"}, {"4000", "sbci"}, {"5000", "subi"}, {"6000", "ori"}, {"7000", "andi"}, {"E000", "ldi"}};
+    for (String[] inst : imd) {
+      pats.add(new Object[] {0xF000, Integer.parseInt(inst[0], 16), F_IMM8, 0, inst[1]});
+    }
+    pats.add(new Object[] {0xF800, 0xA000, F_LDS7, 0, "lds"});       // 1010 0kkk dddd kkkk
+    pats.add(new Object[] {0xF800, 0xA800, F_STS7, 0, "sts"});       // 1010 1kkk dddd kkkk
+    pats.add(new Object[] {0xFF8F, 0x9408, F_SREG, 0, "bset"});      // 1001 0100 0sss 1000
+    pats.add(new Object[] {0xFF8F, 0x9488, F_SREG, 0, "bclr"});      // 1001 0100 1sss 1000
+    pats.add(new Object[] {0xFF00, 0x9800, F_IO_BIT, 0, "cbi"});     // 1001 1000 AAAA Abbb
+    pats.add(new Object[] {0xFF00, 0x9900, F_IO_BIT, 0, "sbic"});    // 1001 1001 AAAA Abbb
+    pats.add(new Object[] {0xFF00, 0x9A00, F_IO_BIT, 0, "sbi"});     // 1001 1010 AAAA Abbb
+    pats.add(new Object[] {0xFF00, 0x9B00, F_IO_BIT, 0, "sbis"});    // 1001 1011 AAAA Abbb
+    pats.add(new Object[] {0xFF00, 0x9600, F_ADIW, 0, "adiw"});      // 1001 0110 KKdd KKKK
+    pats.add(new Object[] {0xFF00, 0x9700, F_ADIW, 0, "sbiw"});      // 1001 0111 KKdd KKKK
+    pats.add(new Object[] {0xFF88, 0x0300, F_FMUL, 0, "mulsu"});     // 0000 0011 0ddd 0rrr
+    pats.add(new Object[] {0xFF88, 0x0308, F_FMUL, 0, "fmul"});      // 0000 0011 0ddd 1rrr
+    pats.add(new Object[] {0xFF88, 0x0380, F_FMUL, 0, "fmuls"});     // 0000 0011 1ddd 0rrr
+    pats.add(new Object[] {0xFF88, 0x0388, F_FMUL, 0, "fmulsu"});    // 0000 0011 1ddd 1rrr
+    pats.add(new Object[] {0xFF00, 0x0100, F_MOVW, 0, "movw"});      // 0000 0001 dddd rrrr
+    pats.add(new Object[] {0xFF00, 0x0200, F_MULS, 0, "muls"});      // 0000 0010 dddd rrrr
+    List<String> names = new ArrayList<>();
+    DECODE = buildTable(pats, names);
+    MNEMONICS = names.toArray(new String[0]);
+  }
+
+  /**
+   * Build the decode table (done outside the static initializer, as code in a class's initializer runs
+   * slowly until the class is initialized)
+   * @param pats instruction patterns, in priority order
+   * @param names receives the mnemonics, indexed by the mnemonic index in each table entry
+   */
+  private static int[] buildTable (List<Object[]> pats, List<String> names) {
+    int[] table = new int[0x10000];
+    // Mnemonic index 0 ("unknown") is the default for opcodes no pattern matches
+    Map<String,Integer> ids = new HashMap<>();
+    names.add("unknown");
+    ids.put("unknown", 0);
+    Arrays.fill(table, (1 << 17) | (FLOW_INVALID << 19));
+    for (int ii = pats.size() - 1; ii >= 0; ii--) {
+      Object[] pat = pats.get(ii);
+      int mask = (Integer) pat[0];
+      int match = (Integer) pat[1];
+      int format = (Integer) pat[2];
+      String name = (String) pat[4];
+      Integer id = ids.get(name);
+      if (id == null) {
+        ids.put(name, id = names.size());
+        names.add(name);
+      }
+      int words = format >= F_LDS ? 2 : 1;
+      int entry = id | (format << 8) | ((Integer) pat[3] << 13) | (words << 17) | (getFlow(name, format) << 19);
+      // Visit every opcode that matches by counting down through the subsets of the bits not in mask
+      int free = ~mask & 0xFFFF;
+      for (int bits = free; ; bits = (bits - 1) & free) {
+        table[match | bits] = entry;
+        if (bits == 0) {
+          break;
+        }
+      }
+    }
+    return table;
+  }
+
+  private static int getFlow (String name, int format) {
+    switch (name) {
+      case "cpse":
+      case "sbrc":
+      case "sbrs":
+      case "sbic":
+      case "sbis":
+        return FLOW_SKIP;
+      case "rjmp":
+      case "jmp":
+        return FLOW_JUMP;
+      case "rcall":
+      case "call":
+      case "icall":
+      case "eicall":
+        return FLOW_CALL;
+      case "ret":
+      case "reti":
+        return FLOW_RETURN;
+      case "ijmp":
+      case "eijmp":
+        return FLOW_INDIRECT;
+    }
+    return format == F_BRANCH ? FLOW_BRANCH : FLOW_NEXT;
+  }
+
+  private static int ptr (String name) {
+    for (int ii = 0; ii < PTRS.length; ii++) {
+      if (PTRS[ii].equals(name)) {
+        return ii;
+      }
+    }
+    throw new IllegalArgumentException(name);
+  }
+
+  /**
+   * @param opcode first (or only) word of an instruction
+   * @return number of 16 bit words in the instruction (1, or 2)
+   */
+  static int getWords (int opcode) {
+    return (DECODE[opcode & 0xFFFF] >> 17) & 0x03;
+  }
+
+  /**
+   * @param opcode first (or only) word of an instruction
+   * @return mnemonic of the instruction, or "unknown"
+   */
+  static String getMnemonic (int opcode) {
+    return MNEMONICS[DECODE[opcode & 0xFFFF] & 0xFF];
+  }
+
+  /**
+   *  Decoded instructions, stored as parallel arrays of primitives (one entry per instruction) rather than
+   *  as an object per instruction, so decoding a large image allocates a handful of arrays and analysis
+   *  code (cross references, diffing, search) can work on the decoded fields instead of parsing text.
+   *  Operand A and B hold the instruction's operands as numbers, and their meaning depends on the
+   *  instruction (see decode()).  Text is only produced when AVRDisassembler.dAsm() formats a range.
+   */
+  static class Instructions {
+    private int       count;
+    private int[]     addr, opcode, word2, inst, operands, target;
+    private boolean   truncated;
+
+    private Instructions (int capacity) {
+      capacity = Math.max(capacity, 1);
+      addr = new int[capacity];
+      opcode = new int[capacity];
+      word2 = new int[capacity];
+      inst = new int[capacity];
+      operands = new int[capacity];
+      target = new int[capacity];
+    }
+
+    /**
+     * Join the instructions decoded from consecutive chunks of code, in order, stopping after the first
+     * chunk that was truncated (as a sequential decode would)
+     */
+    private static Instructions concat (List<Instructions> parts) {
+      int total = 0;
+      for (Instructions part : parts) {
+        total += part.count;
+      }
+      Instructions insts = new Instructions(total);
+      for (Instructions part : parts) {
+        System.arraycopy(part.addr, 0, insts.addr, insts.count, part.count);
+        System.arraycopy(part.opcode, 0, insts.opcode, insts.count, part.count);
+        System.arraycopy(part.word2, 0, insts.word2, insts.count, part.count);
+        System.arraycopy(part.inst, 0, insts.inst, insts.count, part.count);
+        System.arraycopy(part.operands, 0, insts.operands, insts.count, part.count);
+        System.arraycopy(part.target, 0, insts.target, insts.count, part.count);
+        insts.count += part.count;
+        if (part.truncated) {
+          insts.truncated = true;
+          break;
+        }
+      }
+      return insts;
+    }
+
+    private void add (int address, int op, int second, int entry, int opA, int opB, int dest) {
+      addr[count] = address;
+      opcode[count] = op;
+      word2[count] = second;
+      inst[count] = entry;
+      operands[count] = (opA & 0xFF) | (opB << 8);
+      target[count] = dest;
+      count++;
+    }
+
+    /**
+     * @return number of instructions decoded
+     */
+    int size () {
+      return count;
+    }
+
+    /**
+     * @return true if the data ended part way through an instruction (the last instruction is incomplete
+     * if it's a 2 word instruction whose 2nd word is missing)
+     */
+    boolean isTruncated () {
+      return truncated;
+    }
+
+    int getAddress (int idx) {
+      return addr[idx];
+    }
+
+    /**
+     * @return first (or only) word of instruction
+     */
+    int getOpcode (int idx) {
+      return opcode[idx];
+    }
+
+    /**
+     * @return 2nd word of a 2 word instruction (-1 if it's missing), or 0 for a 1 word instruction
+     */
+    int getWord2 (int idx) {
+      return word2[idx];
+    }
+
+    /**
+     * @return number of 16 bit words in instruction (1, or 2)
+     */
+    int getWords (int idx) {
+      return (inst[idx] >> 17) & 0x03;
+    }
+
+    /**
+     * @return index of instruction's mnemonic in getMnemonics() (0 for "unknown")
+     */
+    int getMnemonicId (int idx) {
+      return inst[idx] & 0xFF;
+    }
+
+    String getMnemonic (int idx) {
+      return MNEMONICS[inst[idx] & 0xFF];
+    }
+
+    /**
+     * @return control flow class of instruction (FLOW_NEXT, FLOW_SKIP, etc.)
+     */
+    int getFlow (int idx) {
+      return inst[idx] >>> 19;
+    }
+
+    /**
+     * @return 1st operand: destination register (or source register of st, std, sts and out, low register
+     * of a pair, or SREG bit of bset and bclr) or I/O address of cbi, sbi, sbic and sbis
+     */
+    int getOperandA (int idx) {
+      return operands[idx] & 0xFF;
+    }
+
+    /**
+     * @return 2nd operand: source register, bit number, immediate value, displacement, I/O address, or data
+     * address
+     */
+    int getOperandB (int idx) {
+      return operands[idx] >>> 8;
+    }
+
+    /**
+     * @return pointer operand of ld, ldd, st, std, lpm, elpm, xch, las, lac and lat ("X", "Y+", "-Z", etc.),
+     * or "" if none
+     */
+    String getPointer (int idx) {
+      return PTRS[(inst[idx] >> 13) & 0x0F];
+    }
+
+    /**
+     * @return byte address a branch, jump, or call goes to, or -1 if the instruction doesn't have one
+     */
+    int getTarget (int idx) {
+      return target[idx];
+    }
+
+    /**
+     * @return index of the instruction at addr, or -1 if no instruction starts there
+     */
+    int indexOf (int address) {
+      int idx = Arrays.binarySearch(addr, 0, count, address);
+      return idx >= 0 ? idx : -1;
+    }
+  }
+
+  /**
+   *  Result of a flow following (recursive descent) disassembly, as built by analyze().  Only instructions
+   *  reached from the entry points are decoded, and the words never reached are marked as data.  Everything
+   *  is held in sorted int arrays, so lookups by address are binary searches:
+   *    Basic blocks: runs of instructions entered only at the top and left only at the bottom, in address
+   *      order, with the addresses each one can continue at (targets outside the code are kept, too)
+   *    Call graph: for each address called, the addresses of the instructions that call it
+   *    Data: ranges of addresses that were never reached
+   */
+  static class CodeMap {
+    // Block flags (why a block starts where it does)
+    static final int    ENTRY = 1;            // Entry point (vector, or bootloader start)
+    static final int    CALLED = 2;           // Target of a call
+    static final int    JUMPED = 4;           // Target of a jump, branch, or skip
+    static final int    FALL = 8;             // Follows a conditional branch, or skip
+    private final Instructions  insts;
+    private final byte[]        flash;
+    private final int           offset, base;
+    private final int[]         blockFirst, blockAddr, blockFlags, succFirst, succ;
+    private final int[]         callee, callerFirst, callers;
+    private final int[]         dataStart, dataEnd;
+
+    private CodeMap (byte[] flash, int offset, int base, Instructions insts, int[] blockFirst, int[] blockFlags, int[] succFirst, int[] succ,
+                     int[] callee, int[] callerFirst, int[] callers, int[] dataStart, int[] dataEnd) {
+      this.flash = flash;
+      this.offset = offset;
+      this.base = base;
+      this.insts = insts;
+      this.blockFirst = blockFirst;
+      this.blockFlags = blockFlags;
+      this.succFirst = succFirst;
+      this.succ = succ;
+      this.callee = callee;
+      this.callerFirst = callerFirst;
+      this.callers = callers;
+      this.dataStart = dataStart;
+      this.dataEnd = dataEnd;
+      blockAddr = new int[blockFlags.length];
+      for (int ii = 0; ii < blockAddr.length; ii++) {
+        blockAddr[ii] = insts.getAddress(blockFirst[ii]);
+      }
+    }
+
+    /**
+     * @return instructions reached, in address order
+     */
+    Instructions getInstructions () {
+      return insts;
+    }
+
+    int getBlockCount () {
+      return blockAddr.length;
+    }
+
+    int getBlockStart (int block) {
+      return blockAddr[block];
+    }
+
+    /**
+     * @return address after the last instruction in block
+     */
+    int getBlockEnd (int block) {
+      int last = blockFirst[block + 1] - 1;
+      return insts.getAddress(last) + insts.getWords(last) * 2;
+    }
+
+    /**
+     * @return index in getInstructions() of the first instruction in block
+     */
+    int getFirstInstruction (int block) {
+      return blockFirst[block];
+    }
+
+    /**
+     * @return index in getInstructions() after the last instruction in block
+     */
+    int getEndInstruction (int block) {
+      return blockFirst[block + 1];
+    }
+
+    /**
+     * @return ENTRY, CALLED, JUMPED and FALL flags for block
+     */
+    int getBlockFlags (int block) {
+      return blockFlags[block];
+    }
+
+    /**
+     * @return addresses execution can continue at after block (none if it ends with a return, or an
+     * indirect jump)
+     */
+    int[] getSuccessors (int block) {
+      return Arrays.copyOfRange(succ, succFirst[block], succFirst[block + 1]);
+    }
+
+    /**
+     * @return index of the block holding address, or -1 if it's not in a block
+     */
+    int findBlock (int address) {
+      int idx = Arrays.binarySearch(blockAddr, address);
+      if (idx >= 0) {
+        return idx;
+      }
+      idx = -idx - 2;
+      return idx >= 0 && address < getBlockEnd(idx) ? idx : -1;
+    }
+
+    /**
+     * @return index of the block starting at address, or -1 if no block starts there
+     */
+    int blockAt (int address) {
+      int idx = Arrays.binarySearch(blockAddr, address);
+      return idx >= 0 ? idx : -1;
+    }
+
+    /**
+     * @return true if an instruction reached from an entry point uses the word at address
+     */
+    boolean isCode (int address) {
+      return findBlock(address) >= 0;
+    }
+
+    /**
+     * @return addresses called by the code (including ones outside it), in ascending order
+     */
+    int[] getCallTargets () {
+      return callee.clone();
+    }
+
+    /**
+     * @return addresses of the call instructions that call address, in ascending order (empty if none)
+     */
+    int[] getCallers (int address) {
+      int idx = Arrays.binarySearch(callee, address);
+      return idx >= 0 ? Arrays.copyOfRange(callers, callerFirst[idx], callerFirst[idx + 1]) : new int[0];
+    }
+
+    /**
+     * @return number of callers of address (without copying them)
+     */
+    int getCallerCount (int address) {
+      int idx = Arrays.binarySearch(callee, address);
+      return idx >= 0 ? callerFirst[idx + 1] - callerFirst[idx] : 0;
+    }
+
+    /**
+     * @return number of ranges never reached, which are treated as data
+     */
+    int getDataCount () {
+      return dataStart.length;
+    }
+
+    int getDataStart (int idx) {
+      return dataStart[idx];
+    }
+
+    /**
+     * @return address after the last byte of the data range
+     */
+    int getDataEnd (int idx) {
+      return dataEnd[idx];
+    }
+  }
+
+  /**
+   * @return mnemonics, indexed by Instructions.getMnemonicId()
+   */
+  static String[] getMnemonics () {
+    return MNEMONICS.clone();
+  }
+
+  /**
+   * Decode AVR code into structured instructions.  Each opcode is decoded with a single lookup in a 64K
+   * entry table built at class load.
+   * @param flash byte[] array with AVR code to decode
+   * @param offset offset into flash[] array
+   * @param addr base address for decoding
+   * @param count number of 16 bit words to decode (a 2 word instruction that starts in the last word
+   * also gets its 2nd word, if flash[] holds it)
+   */
+  static Instructions decode (byte[] flash, int offset, int addr, int count) {
+    Instructions insts = new Instructions(count);
+    for (int ii = 0; ii < count; ii++) {
+      int idx = offset + ii * 2;
+      if (idx + 1 >= flash.length || !decodeInst(flash, idx, addr + ii * 2, insts)) {
+        insts.truncated = true;
+        break;
+      }
+      ii += insts.getWords(insts.count - 1) - 1;
+    }
+    return insts;
+  }
+
+  /**
+   * Decode the instruction at flash[idx] and add it to insts
+   * @param pc address of the instruction
+   * @return false if it's a 2 word instruction whose 2nd word is missing (it's still added, with the 2nd
+   * word as -1)
+   */
+  private static boolean decodeInst (byte[] flash, int idx, int pc, Instructions insts) {
+    // 16 Bit Opcode is MSB:LSB Order
+    int opcode = getFlashWord(flash, idx);
+    int inst = DECODE[opcode];
+    int word2 = 0;
+    if (((inst >> 17) & 0x03) == 2) {
+      word2 = idx + 3 < flash.length ? getFlashWord(flash, idx + 2) : -1;
+    }
+    int opA = 0, opB = 0, target = -1;
+    switch ((inst >> 8) & 0x1F) {
+      case F_LDS:                                                       // rd,0xKKKK
+      case F_STS:                                                       // 0xKKKK,rr
+        opA = (opcode & 0x1F0) >> 4;
+        opB = Math.max(word2, 0);
+        break;
+      case F_JMP:                                                       // 22 bit word address
+        if (word2 >= 0) {
+          target = (((opcode & 0x1F0) << 13) + ((opcode & 1) << 16) + word2) * 2;
+        }
+        break;
+      case F_RD:
+      case F_ST:
+      case F_LD:
+        opA = (opcode & 0x1F0) >> 4;
+        break;
+      case F_BRANCH:                                                    // 7 bit signed word offset
+        target = pc + ((((opcode & 0x3F8) << 22) >> 25) + 1) * 2;
+        break;
+      case F_RD_RR:
+        opA = (opcode & 0x1F0) >> 4;
+        opB = ((opcode & 0x200) >> 5) + (opcode & 0x0F);
+        break;
+      case F_RD_BIT:
+        opA = (opcode & 0x1F0) >> 4;
+        opB = opcode & 0x07;
+        break;
+      case F_LDD:                                                       // rd,ptr+q
+      case F_STD:                                                       // ptr+q,rr
+        opA = (opcode & 0x1F0) >> 4;
+        opB = ((opcode & 0x2000) >> 8) + ((opcode & 0x0C00) >> 7) + (opcode & 0x07);
+        break;
+      case F_REL:                                                       // 12 bit signed word offset
+        target = pc + (((opcode << 20) >> 20) + 1) * 2;
+        break;
+      case F_IN:
+      case F_OUT:
+        opA = (opcode & 0x1F0) >> 4;
+        opB = ((opcode & 0x600) >> 5) + (opcode & 0x0F);
+        break;
+      case F_IMM8:
+        opA = ((opcode & 0xF0) >> 4) + 16;
+        opB = ((opcode & 0xF00) >> 4) + (opcode & 0x0F);
+        break;
+      case F_LDS7:
+      case F_STS7:
+        opA = ((opcode & 0xF0) >> 4) + 16;
+        opB = ((opcode & 0x700) >> 4) + (opcode & 0x0F) + 0x40;
+        break;
+      case F_SREG:
+        opA = (opcode & 0x70) >> 4;
+        break;
+      case F_IO_BIT:
+        opA = (opcode & 0xF8) >> 3;
+        opB = opcode & 0x07;
+        break;
+      case F_ADIW:
+        opA = ((opcode & 0x30) >> 4) * 2 + 24;
+        opB = ((opcode & 0xC0) >> 4) + (opcode & 0x0F);
+        break;
+      case F_FMUL:
+        opA = ((opcode & 0x70) >> 4) + 16;
+        opB = (opcode & 0x07) + 16;
+        break;
+      case F_MOVW:
+        opA = ((opcode & 0xF0) >> 4) * 2;
+        opB = (opcode & 0x0F) * 2;
+        break;
+      case F_MULS:
+        opA = ((opcode & 0xF0) >> 4) + 16;
+        opB = (opcode & 0x0F) + 16;
+        break;
+    }
+    insts.add(pc, opcode, word2, inst, opA, opB, target);
+    return word2 >= 0;
+  }
+
+  /**
+   * Decode AVR code in parallel, by splitting it into chunks that are decoded by separate tasks in pool.
+   * The result is the same as decode() returns, in the same order.  A chunk may start on the 2nd word of
+   * a 2 word instruction (lds, sts, jmp, or call), which the previous chunk decodes, so each chunk first
+   * works out where the first instruction it owns starts (see isSecondWord()).
+   * @param flash byte[] array with AVR code to decode
+   * @param offset offset into flash[] array
+   * @param addr base address for decoding
+   * @param count number of 16 bit words to decode
+   * @param pool pool to run tasks in
+   */
+  static Instructions decode (byte[] flash, int offset, int addr, int count, ForkJoinPool pool) {
+    if (count <= CHUNK_WORDS) {
+      return decode(flash, offset, addr, count);
+    }
+    List<ForkJoinTask<Instructions>> tasks = new ArrayList<>();
+    for (int lo = 0; lo < count; lo += CHUNK_WORDS) {
+      int from = lo;
+      int to = Math.min(count, lo + CHUNK_WORDS);
+      tasks.add(pool.submit(() -> {
+        int start = from + (isSecondWord(flash, offset, from) ? 1 : 0);
+        return decode(flash, offset + start * 2, addr + start * 2, Math.max(to - start, 0));
+      }));
+    }
+    List<Instructions> parts = new ArrayList<>();
+    for (ForkJoinTask<Instructions> task : tasks) {
+      parts.add(task.join());
+    }
+    return Instructions.concat(parts);
+  }
+
+  /**
+   * Check if a word would be the 2nd word of a 2 word instruction in a sweep from the first word without
+   * decoding everything before it.  The word before a run of words that all decode as 2 word opcodes is
+   * either a 1 word instruction, or the end of a 2 word instruction, so the first word of the run always
+   * starts an instruction, and from there every other word in the run does.
+   * @param flash byte[] array with AVR code
+   * @param offset offset into flash[] array of the first word
+   * @param word index of word to check (counting from the first word)
+   * @return true if word is the 2nd word of an instruction
+   */
+  private static boolean isSecondWord (byte[] flash, int offset, int word) {
+    int run = 0;
+    for (int ii = word - 1; ii >= 0 && offset + ii * 2 + 1 < flash.length; ii--) {
+      if (((DECODE[getFlashWord(flash, offset + ii * 2)] >> 17) & 0x03) != 2) {
+        break;
+      }
+      run++;
+    }
+    return (run & 1) != 0;
+  }
+
+  /**
+   * Find the vectors in an interrupt vector table, to use as entry points for analyze().  The table ends at
+   * the first vector that doesn't hold a jmp, or rjmp, as code that doesn't use interrupts (such as a
+   * bootloader that leaves the vectors in the application section) starts straight after the reset vector.
+   * @param flash byte[] array with AVR code
+   * @param offset offset into flash[] array of the table
+   * @param base address of the table (0, or the start of the boot section, if it holds the vectors)
+   * @param vectors number of vectors, including reset
+   * @param size size of each vector in bytes (4 for parts that have jmp, 2 for parts that only have rjmp)
+   * @return addresses of the vectors found
+   */
+  static int[] getVectors (byte[] flash, int offset, int base, int vectors, int size) {
+    int count = 0;
+    while (count < vectors && offset + count * size + 1 < flash.length &&
+           (DECODE[getFlashWord(flash, offset + count * size)] >>> 19) == FLOW_JUMP) {
+      count++;
+    }
+    int[] entries = new int[count];
+    for (int ii = 0; ii < count; ii++) {
+      entries[ii] = base + ii * size;
+    }
+    return entries;
+  }
+
+  /**
+   * Disassemble AVR code by following the flow of execution from a set of entry points (such as the
+   * reset and interrupt vectors, and the start of the bootloader), rather than by sweeping through it in
+   * address order, so data tables and padding aren't decoded as instructions.  Jumps, branches, calls and
+   * skips are followed, while returns, indirect jumps and opcodes that aren't instructions end a path.
+   * Indirect calls are assumed to return.  The words never reached are marked as data.
+   * @param flash byte[] array with AVR code to disassemble
+   * @param offset offset into flash[] array
+   * @param addr base address for disassembly
+   * @param count number of 16 bit words in the code
+   * @param entries addresses to start from (ones outside the code are ignored)
+   * @return map of the code, with its basic blocks, call graph and data ranges
+   */
+  static CodeMap analyze (byte[] flash, int offset, int addr, int count, int[] entries) {
+    count = Math.max(Math.min(count, (flash.length - offset) / 2), 0);
+    // Pass 1: find the instructions reached, marking each word as 1st, or 2nd word of an instruction, and
+    // flagging the words that start a block
+    byte[] mark = new byte[count];
+    byte[] lead = new byte[count];
+    int[] stack = new int[Math.max(entries.length, 16)];
+    int sp = 0;
+    long[] calls = new long[16];          // Call target (high 32 bits) and address of call (low 32 bits)
+    int numCalls = 0;
+    for (int entry : entries) {
+      int word = (entry - addr) >> 1;
+      if (entry >= addr && word < count) {
+        lead[word] |= CodeMap.ENTRY;
+        stack[sp++] = word;
+      }
+    }
+    Instructions one = new Instructions(1);
+    while (sp > 0) {
+      int word = stack[--sp];
+      while (word < count && mark[word] == 0) {
+        one.count = 0;
+        if (!decodeInst(flash, offset + word * 2, addr + word * 2, one)) {
+          break;
+        }
+        int words = one.getWords(0);
+        int flow = one.getFlow(0);
+        if (flow == FLOW_INVALID || word + words > count) {
+          break;
+        }
+        mark[word] = 1;
+        if (words == 2) {
+          mark[word + 1] = 2;
+        }
+        int next = word + words;
+        int dest = one.getTarget(0);
+        int target = dest >= addr && ((dest - addr) >> 1) < count ? (dest - addr) >> 1 : -1;
+        if (flow == FLOW_CALL && dest >= 0) {
+          if (numCalls == calls.length) {
+            calls = Arrays.copyOf(calls, numCalls * 2);
+          }
+          calls[numCalls++] = ((long) dest << 32) | (addr + word * 2);
+        }
+        if (flow == FLOW_SKIP && next < count) {
+          // Target is the instruction after the one that can be skipped
+          int skipped = next + ((DECODE[getFlashWord(flash, offset + next * 2)] >> 17) & 0x03);
+          target = skipped < count ? skipped : -1;
+        }
+        if (target >= 0 && flow != FLOW_NEXT) {
+          lead[target] |= flow == FLOW_CALL ? CodeMap.CALLED : CodeMap.JUMPED;
+          if (sp == stack.length) {
+            stack = Arrays.copyOf(stack, sp * 2);
+          }
+          stack[sp++] = target;
+        }
+        if (flow == FLOW_JUMP || flow == FLOW_RETURN || flow == FLOW_INDIRECT) {
+          break;
+        }
+        if ((flow == FLOW_BRANCH || flow == FLOW_SKIP) && next < count) {
+          lead[next] |= CodeMap.FALL;
+        }
+        word = next;
+      }
+    }
+    // Pass 2: decode the instructions reached in address order, and split them into blocks
+    int numInsts = 0;
+    int numData = 0;
+    for (int ii = 0; ii < count; ii++) {
+      numInsts += mark[ii] == 1 ? 1 : 0;
+      numData += mark[ii] == 0 && (ii == 0 || mark[ii - 1] != 0) ? 1 : 0;
+    }
+    Instructions insts = new Instructions(numInsts);
+    int[] dataStart = new int[numData];
+    int[] dataEnd = new int[numData];
+    numData = 0;
+    int[] blockFirst = new int[numInsts + 1];
+    int[] blockFlags = new int[numInsts];
+    int numBlocks = 0;
+    for (int ii = 0; ii < count; ii++) {
+      if (mark[ii] == 0) {
+        if (ii == 0 || mark[ii - 1] != 0) {
+          dataStart[numData++] = addr + ii * 2;
+        }
+        dataEnd[numData - 1] = addr + ii * 2 + 2;
+      } else if (mark[ii] == 1) {
+        int prev = insts.count - 1;
+        decodeInst(flash, offset + ii * 2, addr + ii * 2, insts);
+        if (prev < 0 || lead[ii] != 0 || insts.getAddress(prev) + insts.getWords(prev) * 2 != addr + ii * 2 ||
+            (insts.getFlow(prev) != FLOW_NEXT && insts.getFlow(prev) != FLOW_CALL)) {
+          blockFirst[numBlocks] = insts.count - 1;
+          blockFlags[numBlocks++] = lead[ii];
+        }
+      }
+    }
+    blockFirst[numBlocks] = insts.count;
+    // Successors of each block, from how its last instruction continues
+    int[] succFirst = new int[numBlocks + 1];
+    int[] succ = new int[numBlocks * 2];
+    int numSucc = 0;
+    for (int ii = 0; ii < numBlocks; ii++) {
+      succFirst[ii] = numSucc;
+      int last = blockFirst[ii + 1] - 1;
+      int next = insts.getAddress(last) + insts.getWords(last) * 2;
+      boolean fall = last + 1 < insts.count && insts.getAddress(last + 1) == next;
+      switch (insts.getFlow(last)) {
+        case FLOW_BRANCH:
+          succ[numSucc++] = insts.getTarget(last);
+          succ[numSucc++] = next;
+          break;
+        case FLOW_SKIP:
+          succ[numSucc++] = next;
+          if (fall) {
+            succ[numSucc++] = next + insts.getWords(last + 1) * 2;
+          }
+          break;
+        case FLOW_JUMP:
+          if (insts.getTarget(last) >= 0) {
+            succ[numSucc++] = insts.getTarget(last);
+          }
+          break;
+        case FLOW_NEXT:
+        case FLOW_CALL:
+          if (fall) {
+            succ[numSucc++] = next;
+          }
+          break;
+      }
+    }
+    succFirst[numBlocks] = numSucc;
+    // Call graph, indexed by target, as each target's callers are then a contiguous range
+    Arrays.sort(calls, 0, numCalls);
+    int numCallees = 0;
+    for (int ii = 0; ii < numCalls; ii++) {
+      numCallees += ii == 0 || (calls[ii] >>> 32) != (calls[ii - 1] >>> 32) ? 1 : 0;
+    }
+    int[] callee = new int[numCallees];
+    int[] callerFirst = new int[numCallees + 1];
+    int[] callers = new int[numCalls];
+    numCallees = 0;
+    for (int ii = 0; ii < numCalls; ii++) {
+      if (ii == 0 || (calls[ii] >>> 32) != (calls[ii - 1] >>> 32)) {
+        callee[numCallees] = (int) (calls[ii] >>> 32);
+        callerFirst[numCallees++] = ii;
+      }
+      callers[ii] = (int) calls[ii];
+    }
+    callerFirst[numCallees] = numCalls;
+    return new CodeMap(flash, offset, addr, insts, Arrays.copyOf(blockFirst, numBlocks + 1), Arrays.copyOf(blockFlags, numBlocks),
+                       succFirst, Arrays.copyOf(succ, numSucc), callee, callerFirst, callers, dataStart, dataEnd);
+  }
+
   /**
    * Implements a basic disassembler for the AVR Instruction Set
    * Note: this dissaambler was written quickly and crudely so there may be errors, or omissions in its output
@@ -18,76 +961,168 @@ public class AVRDisassembler {
    * @param count number of 16 bit words to disassemble
    */
   void dAsm (byte[] flash, int offset, int addr, int count) {
+    Instructions insts = decode(flash, offset, addr, count);
+    dAsm(insts, 0, insts.size());
+  }
+
+  /**
+   * Parallel version of dAsm(), which decodes and formats chunks of the code in separate tasks in pool
+   * (see decode()), and writes the text in address order, so the output is the same as dAsm() writes
+   * @param pool pool to run tasks in
+   */
+  void dAsm (byte[] flash, int offset, int addr, int count, ForkJoinPool pool) {
+    dAsm(decode(flash, offset, addr, count, pool), pool);
+  }
+
+  /**
+   * Format decoded instructions in parallel, with each task formatting a range of instructions into its
+   * own buffer, which are then written in order
+   * @param insts decoded instructions
+   * @param pool pool to run tasks in
+   */
+  void dAsm (Instructions insts, ForkJoinPool pool) {
+    if (insts.size() <= CHUNK_LINES) {
+      dAsm(insts, 0, insts.size());
+      return;
+    }
+    List<ForkJoinTask<StringBuilder>> tasks = new ArrayList<>();
+    for (int lo = 0; lo < insts.size(); lo += CHUNK_LINES) {
+      int from = lo;
+      int to = Math.min(insts.size(), lo + CHUNK_LINES);
+      tasks.add(pool.submit(() -> {
+        StringBuilder buf = new StringBuilder(to - from << 5);
+        new AVRDisassembler(buf).dAsm(insts, from, to);
+        return buf;
+      }));
+    }
     try {
-      for (int ii = 0; ii < count; ii++) {
-        cursor = 0;
-        boolean skipWord = false;
-        int idx = ii * 2;
-        int word2 = 0;
-        // 16 Bit Opcode is MSB:LSB Order
-        int opcode = getFlashWord(flash, offset + idx);
-        printAddr(addr + idx);
-        printCmd();
-        printHex16(opcode);
-        tabTo(14);
-        if ((opcode & ~0x1F0) == 0x9000) {                        // lds (4 byte instruction)
-          printInst("lds");
-          printDstReg((opcode & 0x1F0) >> 4);
-          print(",0x");
-          word2 = getFlashWord(flash, offset + idx + 2);
-          printHex16(word2);
-          skipWord = true;
-        } else if ((opcode & ~0x1F0) == 0x9200) {                 // sts (4 byte instruction)
-          printInst("sts");
-          print("0x");
-          word2 = getFlashWord(flash, offset + idx + 2);
-          printHex16(word2);
-          printSrcReg((opcode & 0x1F0) >> 4);
-          skipWord = true;
-        } else if ((opcode & 0x0FE0E) == 0x940C) {                // jmp (4 byte instruction)
-          printInst("jmp");
-          print("0x");
-          word2 = getFlashWord(flash, offset + idx + 2);
-          // 22 bit address
-          int add22 = (opcode & 0x1F0) << 13;
-          add22 += (opcode & 1) << 16;
-          add22 += word2;
-          printAddr(add22 * 2);
-          skipWord = true;
-        } else if ((opcode & 0x0FE0E) == 0x940E) {                // call (4 byte instruction)
-          printInst("call");
-          print("0x");
-          word2 = getFlashWord(flash, offset + idx + 2);
-          // 22 bit address
-          int add22 = (opcode & 0x1F0) << 13;
-          add22 += (opcode & 1) << 16;
-          add22 += word2;
-          printAddr(add22 * 2);
-          skipWord = true;
+      for (ForkJoinTask<StringBuilder> task : tasks) {
+        out.append(task.join());
+      }
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
+  /**
+   * Format a range of decoded instructions as text (see getDisAsm()), so only the instructions that are
+   * shown need to be formatted
+   * @param insts decoded instructions
+   * @param from index of first instruction to format
+   * @param to index after last instruction to format
+   */
+  void dAsm (Instructions insts, int from, int to) {
+    for (int ii = from; ii < to; ii++) {
+      cursor = 0;
+      int addr = insts.getAddress(ii);
+      printAddr(addr);
+      printCmd();
+      printHex16(insts.getOpcode(ii));
+      tabTo(14);
+      printInst(insts, ii);
+      if (insts.getWord2(ii) < 0) {
+        break;
+      }
+      if (insts.getWords(ii) == 2) {
+        // Print 2nd line to show extra word used by 2 word instructions
+        println();
+        if (addr + 2 > 0x10000) {
+          printAddr(addr + 2);
         } else {
-          dAsm2Byte(addr + idx, opcode);
+          printHex16(addr + 2);
         }
-        if (skipWord) {
-          // Print 2nd line to show extra word used by 2 word instructions
+        print(":");
+        tabTo(8);
+        printHex16(insts.getWord2(ii));
+      }
+      println();
+    }
+    if (to == insts.size() && insts.isTruncated()) {
+      print("<end of data>");
+    }
+    flush();
+  }
+
+  /**
+   * Format the code found by analyze() in address order, with a label before each block that's an entry
+   * point, or the target of a call, jump, branch, or skip, and with targets shown as labels.  Ranges never
+   * reached are shown as data words, 8 per line, or as one line, if they're erased.
+   * @param map code map from analyze()
+   */
+  void dAsm (CodeMap map) {
+    labels = map;
+    try {
+      int data = 0;
+      for (int ii = 0; ii < map.getBlockCount(); ii++) {
+        int start = map.getBlockStart(ii);
+        while (data < map.getDataCount() && map.getDataStart(data) < start) {
+          printData(map, data++);
+        }
+        cursor = 0;
+        if (printLabel(map.getBlockFlags(ii), start)) {
+          print(":");
+          int callers = map.getCallerCount(start);
+          if (callers > 0) {
+            tabTo(20);
+            print("; called from " + callers + (callers > 1 ? " places" : " place"));
+          }
           println();
-          if (addr + idx + 2 > 0x10000) {
-            printAddr(addr + idx + 2);
-          } else {
-            printHex16(addr + idx + 2);
+        }
+        dAsm(map.getInstructions(), map.getFirstInstruction(ii), map.getEndInstruction(ii));
+      }
+      while (data < map.getDataCount()) {
+        printData(map, data++);
+      }
+    } finally {
+      labels = null;
+    }
+  }
+
+  /**
+   * Print a range of data words, 8 per line, except for runs of more than 8 erased words (0xFFFF), which
+   * are printed as one line
+   */
+  private void printData (CodeMap map, int idx) {
+    int addr = map.getDataStart(idx);
+    int end = map.getDataEnd(idx);
+    while (addr < end) {
+      cursor = 0;
+      printAddr(addr);
+      printCmd();
+      int erased = getErased(map, addr, end);
+      if (erased > 16) {
+        print("<" + erased + " bytes erased>");
+        addr += erased;
+      } else {
+        int start = addr;
+        int stop = Math.min(addr + 16, end);
+        for (int ii = start; ii < stop; ii += 2) {
+          if (ii > start) {
+            if (getErased(map, ii, Math.min(ii + 18, end)) > 16) {
+              break;
+            }
+            print(" ");
           }
-          print(":");
-          tabTo(8);
-          printHex16(word2);
-          ii++;
+          printHex16(getFlashWord(map.flash, map.offset + ii - map.base));
+          addr = ii + 2;
         }
-        println();
       }
-    } catch (ArrayIndexOutOfBoundsException ex) {
-      print("<end of data>");
+      println();
+    }
+  }
+
+  /**
+   * @return number of bytes from addr (up to end) that are erased
+   */
+  private static int getErased (CodeMap map, int addr, int end) {
+    int ii = addr;
+    while (ii < end && getFlashWord(map.flash, map.offset + ii - map.base) == 0xFFFF) {
+      ii += 2;
     }
+    return ii - addr;
   }
 
-  private int getFlashWord (byte[] flash, int idx) {
+  private static int getFlashWord (byte[] flash, int idx) {
     return (((int) flash[idx + 1] & 0xFF) << 8) + ((int) flash[idx] & 0xFF);
   }
 
@@ -100,98 +1135,121 @@ public class AVRDisassembler {
    *    SPM   Z+,r1:r0
    */
 
-  // Disassemble 2 byte Instructions
-  private void dAsm2Byte (int addr, int opcode) {
-    if (dAsmNoArgs(opcode)) {                                         // clc, clh, etc.
-    } else if (dAsmLogic(opcode)) {                                   //
-      printDstReg((opcode & 0x1F0) >> 4);
-    } else if (dAsmXYZStore(opcode)) {                                //
-      printSrcReg((opcode & 0x1F0) >> 4);
-    } else if (dAsmBranch(opcode)) {                                  // Branch instruction
-      if ((opcode & 0x200) != 0) {
-        int delta = (((opcode | 0xFC00) >> 3) + 1) * 2;               // Negative offset
-        delta |= 0xFFFFFC00;                                          // extend sign bit
-        printAddr(addr + delta);
-      } else {
-        int delta = (((opcode & 0x3F8) >> 3) + 1) * 2;                // Positive offset
-        printAddr(addr + delta);
-      }
-    } else if (dAsmArith(opcode)) {
-      printDstReg((opcode & 0x1F0) >> 4);
-      printSrcReg(((opcode & 0x200) >> 5) + (opcode & 0x0F));
-    } else if (dAsmBitOps(opcode)) {                                  //
-      printDstReg((opcode & 0x1F0) >> 4);
-      print(",");
-      printDec(opcode & 0x07);
-    } else if (dAsmLddYZQ(opcode)) {                                  // ldd rn,Y+q, ldd rn,Z+q
-      // Handled in function
-    } else if (dAsmStdYZQ(opcode)) {                                  // std Y+q,rn, std Z+q,rn
-      // Handled in function
-    } else if (dAsmXYZLoad(opcode)) {                                 //
-      // Handled in function
-    } else if (dAsmRelCallJmp(opcode)) {
-      if ((opcode & 0x800) != 0) {
-        int delta = (((opcode | 0xF000)) + 1) * 2;                    // Negative offset
-        delta |= 0xFFFFF000;                                          // extend sign bit
-        printAddr(addr + delta);
-      } else {
-        int delta = (((opcode & 0xFFF)) + 1) * 2;                     // Positive offset
-        printAddr(addr + delta);
-      }
-    } else if ((opcode & ~0x7FF) == 0xB000) {                          // in rn,0xnn
-      printInst("in");
-      printDstReg((opcode & 0x1F0) >> 4);
-      print(",0x");
-      printHex8(((opcode & 0x600) >> 5) + (opcode & 0x0F));
-    } else if ((opcode & ~0x7FF) == 0xB800) {                           // out 0xnn,rn
-      printInst("out");
-      print("0x");
-      printHex8(((opcode & 0x600) >> 5) + (opcode & 0x0F));
-      printSrcReg((opcode & 0x1F0) >> 4);
-    } else if (dAsmByteImd(opcode)) {                                   // cpi, sbci, subi, ori, andi or ldi
-      printDstReg(((opcode & 0xF0) >> 4) + 16);
-      print(",0x");
-      printHex8(((opcode & 0xF00) >> 4) + (opcode & 0x0F));
-    } else if ((opcode & 0xF800) == 0xA000) {                           // lds
-      printInst("lds");
-      printDstReg(((opcode & 0xF0) >> 4) + 16);
-      print(",0x");
-      printHex8(((opcode & 0x700) >> 4) + (opcode & 0x0F) + 0x40);
-    } else if ((opcode & 0xF800) == 0xA800) {                           // sts
-      printInst("sts");
-      print("0x");
-      printHex8(((opcode & 0x700) >> 4) + (opcode & 0x0F) + 0x40);
-      printSrcReg(((opcode & 0xF0) >> 4) + 16);
-    } else if (dAsmSetClr(opcode)) {                                    // bclr or bset
-      print(" ");
-      printDec((opcode & 0x70) >> 4);
-    } else if (dAsmBitOps2(opcode)) {                                   // cbi, sbi, sbic or sbis
-      print("0x");
-      printHex8((opcode & 0xF8) >> 3);
-      print(",");
-      printDec( opcode & 0x07);
-    } else if (dAsmWordImd(opcode)) {                                   // adiw or sbiw
-      printDstPair(((opcode & 0x30) >> 4) * 2 + 24);
-      print(",0x");
-      printHex8(((opcode & 0xC0) >> 4) + (opcode & 0x0F));
-    } else if (dAsmMul(opcode)) {                                       // mulsu, fmul, fmuls or fmulsu
-      printDstReg(((opcode & 7) >> 4) + 16);
-      printSrcReg((opcode & 0x07) + 16);
-    } else if ((opcode & ~0xFF) == 0x0100) {                            // movw r17:16,r1:r0
-      printInst("movw");
-      printDstPair(((opcode & 0xF0) >> 4) * 2);
-      print(",");
-      printSrcPair((opcode & 0x0F) * 2);
-    } else if ((opcode & ~0xFF) == 0x0200) {                            // muls r21,r20
-      printInst("muls");
-      printDstReg(((opcode & 0xF0) >> 4) + 16);
-      printSrcReg((opcode & 0x0F) + 16);
-    } else {
-      print("unknown");
+  /**
+   * Print the mnemonic and operands of a decoded instruction using the operand format from its decode table
+   * entry (a 2 word instruction whose 2nd word is missing is printed up to the missing word)
+   */
+  private void printInst (Instructions insts, int idx) {
+    String name = insts.getMnemonic(idx);
+    int format = (insts.inst[idx] >> 8) & 0x1F;
+    if (format == F_NONE) {                                             // clc, clh, etc.
+      print(name);
+      return;
+    }
+    printInst(name);
+    int opA = insts.getOperandA(idx);
+    int opB = insts.getOperandB(idx);
+    String ptr = insts.getPointer(idx);
+    boolean missing = insts.getWord2(idx) < 0;
+    switch (format) {
+      case F_LDS:                                                       // lds (4 byte instruction)
+        printDstReg(opA);
+        print(",0x");
+        if (!missing) {
+          printHex16(opB);
+        }
+        break;
+      case F_STS:                                                       // sts (4 byte instruction)
+        print("0x");
+        if (!missing) {
+          printHex16(opB);
+          printSrcReg(opA);
+        }
+        break;
+      case F_JMP:                                                       // jmp, or call (4 byte instruction)
+        if (missing) {
+          print("0x");
+        } else {
+          printTarget(insts.getTarget(idx), "0x");
+        }
+        break;
+      case F_BRANCH:                                                    // Branch instruction
+      case F_REL:                                                       // rjmp, or rcall
+        printTarget(insts.getTarget(idx), "");
+        break;
+      case F_RD:                                                        // pop, push, com, etc.
+        printDstReg(opA);
+        break;
+      case F_ST:                                                        // st X,rn, etc.
+        print(ptr);
+        printSrcReg(opA);
+        break;
+      case F_RD_RR:                                                     // add, mov, etc.
+      case F_FMUL:                                                      // mulsu, fmul, fmuls or fmulsu
+      case F_MULS:                                                      // muls r21,r20
+        printDstReg(opA);
+        printSrcReg(opB);
+        break;
+      case F_RD_BIT:                                                    // bld, bst, sbrc or sbrs
+        printDstReg(opA);
+        print(",");
+        printDec(opB);
+        break;
+      case F_LDD:                                                       // ldd rn,Y+q, ldd rn,Z+q
+        printDstReg(opA);
+        print(",");
+        print(ptr);
+        printDec(opB);
+        break;
+      case F_STD:                                                       // std Y+q,rn, std Z+q,rn
+        print(ptr);
+        printDec(opB);
+        print(",");
+        printDstReg(opA);
+        break;
+      case F_LD:                                                        // ld rn,X, etc.
+        printDstReg(opA);
+        print(",");
+        print(ptr);
+        break;
+      case F_IN:                                                        // in rn,0xnn
+      case F_IMM8:                                                      // cpi, sbci, subi, ori, andi or ldi
+      case F_LDS7:                                                      // lds
+        printDstReg(opA);
+        print(",0x");
+        printHex8(opB);
+        break;
+      case F_OUT:                                                       // out 0xnn,rn
+      case F_STS7:                                                      // sts
+        print("0x");
+        printHex8(opB);
+        printSrcReg(opA);
+        break;
+      case F_SREG:                                                      // bclr or bset
+        print(" ");
+        printDec(opA);
+        break;
+      case F_IO_BIT:                                                    // cbi, sbi, sbic or sbis
+        print("0x");
+        printHex8(opA);
+        print(",");
+        printDec(opB);
+        break;
+      case F_ADIW:                                                      // adiw or sbiw
+        printDstPair(opA);
+        print(",0x");
+        printHex8(opB);
+        break;
+      case F_MOVW:                                                      // movw r17:16,r1:r0
+        printDstPair(opA);
+        print(",");
+        printSrcPair(opB);
+        break;
     }
   }
 
-  // Print functions that track cursor position (to support tabbing)
+  // Print functions that track cursor position (to support tabbing).  Each line is built in a reusable
+  // char[] buffer and copied to the output once it's complete, so formatting doesn't allocate per line.
 
   private void printCmd () {
     print(":");
@@ -199,28 +1257,54 @@ public class AVRDisassembler {
   }
 
   private void print (String txt) {
-    cursor += txt.length();
-    pOut.print(txt);
+    int len = txt.length();
+    ensure(len);
+    txt.getChars(0, len, line, cursor);
+    cursor += len;
   }
 
   private void println () {
-    pOut.println();
+    print(EOL);
+    flush();
+  }
+
+  /**
+   * Copy the line buffer to the output
+   */
+  private void flush () {
+    try {
+      if (out instanceof StringBuilder) {
+        ((StringBuilder) out).append(line, 0, cursor);
+      } else if (out instanceof Writer) {
+        ((Writer) out).write(line, 0, cursor);
+      } else {
+        out.append(lineView, 0, cursor);
+      }
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
     cursor = 0;
   }
 
+  private void ensure (int count) {
+    if (cursor + count > line.length) {
+      line = Arrays.copyOf(line, Math.max(line.length * 2, cursor + count));
+      lineView = CharBuffer.wrap(line);
+    }
+  }
+
   private void tabTo (int pos) {
-    while (cursor < pos) {
-      pOut.print(" ");
-      cursor++;
+    if (cursor < pos) {
+      ensure(pos - cursor);
+      Arrays.fill(line, cursor, pos, ' ');
+      cursor = pos;
     }
   }
 
   private void printHex8 (int val) {
-    if (val < 0x10) {
-      pOut.print("0");
-    }
-    pOut.print(Integer.toHexString(val).toUpperCase());
-    cursor += 2;
+    ensure(2);
+    line[cursor++] = HEX[(val >> 4) & 0x0F];
+    line[cursor++] = HEX[val & 0x0F];
   }
 
   private void printAddr (int val) {
@@ -231,6 +1315,36 @@ public class AVRDisassembler {
     }
   }
 
+  /**
+   * Print the address a jump, branch, or call goes to as its label, if it has one, or as hex after prefix
+   */
+  private void printTarget (int addr, String prefix) {
+    int block = labels != null ? labels.blockAt(addr) : -1;
+    if (block >= 0 && printLabel(labels.getBlockFlags(block), addr)) {
+      return;
+    }
+    print(prefix);
+    printAddr(addr);
+  }
+
+  /**
+   * Print the label for a block with the given flags ("entry_", "sub_", or "L_" followed by its address)
+   * @return false if the block doesn't get a label (it only starts a block because it follows a branch)
+   */
+  private boolean printLabel (int flags, int addr) {
+    if ((flags & CodeMap.ENTRY) != 0) {
+      print("entry_");
+    } else if ((flags & CodeMap.CALLED) != 0) {
+      print("sub_");
+    } else if ((flags & CodeMap.JUMPED) != 0) {
+      print("L_");
+    } else {
+      return false;
+    }
+    printAddr(addr);
+    return true;
+  }
+
   private void printHex16 (int val) {
     printHex8((val >> 8) & 0xFF);
     printHex8(val & 0xFF);
@@ -242,15 +1356,18 @@ public class AVRDisassembler {
     printHex8(val & 0xFF);
   }
 
+  /**
+   * Print a value from 0 to 999 (register numbers, bit numbers and displacements)
+   */
   private void printDec (int val) {
-    pOut.print(val);
-    if (val < 10) {
-      cursor++;
-    } else if (val < 100) {
-      cursor += 2;
-    } else {
-      cursor += 3;
+    ensure(3);
+    if (val >= 100) {
+      line[cursor++] = HEX[val / 100];
+    }
+    if (val >= 10) {
+      line[cursor++] = HEX[val / 10 % 10];
     }
+    line[cursor++] = HEX[val % 10];
   }
 
   private void printInst (String str) {
@@ -282,237 +1399,11 @@ public class AVRDisassembler {
     printDec(reg);
   }
 
-  private boolean dAsmNoArgs (int opcode) {
-    switch (opcode) {
-      case 0x0000: print("nop");     return true;                 // 0000 0000 0000 0000
-      case 0x9408: print("sec");     return true;                 // 1001 0100 0000 1000
-      case 0x9409: print("ijmp");    return true;                 // 1001 0100 0000 1001
-      case 0x9418: print("sez");     return true;                 // 1001 0100 0001 1000
-      case 0x9419: print("eijmp");   return true;                 // 1001 0100 0001 1001
-      case 0x9428: print("sen");     return true;                 // 1001 0100 0010 1000
-      case 0x9438: print("sev");     return true;                 // 1001 0100 0011 1000
-      case 0x9448: print("ses");     return true;                 // 1001 0100 0100 1000
-      case 0x9458: print("seh");     return true;                 // 1001 0100 0101 1000
-      case 0x9468: print("set");     return true;                 // 1001 0100 0110 1000
-      case 0x9478: print("sei");     return true;                 // 1001 0100 0111 1000
-      case 0x9488: print("clc");     return true;                 // 1001 0100 1000 1000
-      case 0x9498: print("clz");     return true;                 // 1001 0100 1001 1000
-      case 0x94A8: print("cln");     return true;                 // 1001 0100 1010 1000
-      case 0x94B8: print("clv");     return true;                 // 1001 0100 1011 1000
-      case 0x94C8: print("cls");     return true;                 // 1001 0100 1100 1000
-      case 0x94D8: print("clh");     return true;                 // 1001 0100 1101 1000
-      case 0x94E8: print("clt");     return true;                 // 1001 0100 1110 1000
-      case 0x94F8: print("cli");     return true;                 // 1001 0100 1111 1000
-      case 0x9508: print("ret");     return true;                 // 1001 0101 0000 1000
-      case 0x9509: print("icall");   return true;                 // 1001 0101 0000 1001
-      case 0x9518: print("reti");    return true;                 // 1001 0101 0001 1000
-      case 0x9519: print("eicall");  return true;                 // 1001 0101 0001 1001
-      case 0x9588: print("sleep");   return true;                 // 1001 0101 1000 1000
-      case 0x9598: print("break");   return true;                 // 1001 0101 1001 1000
-      case 0x95A8: print("wdr");     return true;                 // 1001 0101 1010 1000
-      case 0x95C8: print("lpm");     return true;                 // 1001 0101 1100 1000
-      case 0x95D8: print("elpm");    return true;                 // 1001 0101 1101 1000
-      case 0x95E8: print("spm");     return true;                 // 1001 0101 1110 1000
-      case 0x95F8: print("spm");     return true;                 // 1001 0101 1111 1000
-    }
-    return false;
-  }
-
-  private boolean dAsmSetClr (int opcode) {
-    switch (opcode & 0xFF8F) {
-      case 0x9408: printInst("bset"); return true;                // 1001 0100 0sss 1000
-      case 0x9488: printInst("bclr"); return true;                // 1001 0100 1sss 1000
-    }
-    return false;
-  }
-
-  private boolean dAsmLogic (int opcode) {
-    switch (opcode & 0xFE0F) {
-      case 0x900F: printInst("pop");   return true;               // 1001 000d dddd 1111
-      case 0x920F: printInst("push");  return true;               // 1001 001d dddd 1111
-      case 0x9400: printInst("com");   return true;               // 1001 010d dddd 0000
-      case 0x9401: printInst("neg");   return true;               // 1001 010d dddd 0001
-      case 0x9402: printInst("swap");  return true;               // 1001 010d dddd 0010
-      case 0x9403: printInst("inc");   return true;               // 1001 010d dddd 0011
-      case 0x9405: printInst("asr");   return true;               // 1001 010d dddd 0101
-      case 0x9406: printInst("lsr");   return true;               // 1001 010d dddd 0110
-      case 0x9407: printInst("ror");   return true;               // 1001 010d dddd 0111
-      case 0x940A: printInst("dec");   return true;               // 1001 010d dddd 1010
-    }
-    return false;
-  }
-
-  private boolean dAsmXYZStore (int opcode) {
-    switch (opcode & 0xFE0F) {
-      case 0x8200: printInst("st");  print("Z");  return true;    // 1000 001r rrrr 0000
-      case 0x8208: printInst("st");  print("Y");  return true;    // 1000 001r rrrr 1000
-      case 0x9201: printInst("st");  print("Z+"); return true;    // 1001 001r rrrr 0001
-      case 0x9202: printInst("st");  print("-Z"); return true;    // 1001 001r rrrr 0010
-      case 0x9204: printInst("xch"); print("Z");  return true;    // 1001 001r rrrr 0100
-      case 0x9205: printInst("las"); print("Z");  return true;    // 1001 001r rrrr 0101
-      case 0x9206: printInst("lac"); print("Z");  return true;    // 1001 001r rrrr 0110
-      case 0x9207: printInst("lat"); print("Z");  return true;    // 1001 001r rrrr 0111
-      case 0x9209: printInst("st");  print("Y+"); return true;    // 1001 001r rrrr 1001
-      case 0x920A: printInst("st");  print("-Y"); return true;    // 1001 001r rrrr 1010
-      case 0x920C: printInst("st");  print("X");  return true;    // 1001 001r rrrr 1100
-      case 0x920D: printInst("st");  print("X+"); return true;    // 1001 001r rrrr 1101
-      case 0x920E: printInst("st");  print("-X"); return true;    // 1001 001r rrrr 1110
-    }
-    return false;
-  }
-
-  private boolean dAsmXYZLoad (int opcode) {
-    String src;
-    switch (opcode & 0xFE0F) {
-      case 0x8000: printInst("ld");   src = "Z";  break;          // 1000 000d dddd 0000
-      case 0x8008: printInst("ld");   src = "Y";  break;          // 1000 000d dddd 1000
-      case 0x9001: printInst("ld");   src = "Z+"; break;          // 1001 000d dddd 0001
-      case 0x9002: printInst("ld");   src = "-Z"; break;          // 1001 000d dddd 0010
-      case 0x9004: printInst("lpm");  src = "Z";  break;          // 1001 000d dddd 0100
-      case 0x9005: printInst("lpm");  src = "Z+"; break;          // 1001 000d dddd 0101
-      case 0x9006: printInst("elpm"); src = "Z";  break;          // 1001 000d dddd 0110
-      case 0x9007: printInst("elpm"); src = "Z+"; break;          // 1001 000d dddd 0111
-      case 0x9009: printInst("ld");   src = "Y+"; break;          // 1001 000d dddd 1001
-      case 0x900A: printInst("ld");   src = "-Y"; break;          // 1001 000d dddd 1010
-      case 0x900C: printInst("ld");   src = "X";  break;          // 1001 000d dddd 1100
-      case 0x900D: printInst("ld");   src = "X+"; break;          // 1001 000d dddd 1101
-      case 0x900E: printInst("ld");   src = "-X"; break;          // 1001 000d dddd 1110
-      default: return false;
-    }
-    printDstReg((opcode & 0x1F0) >> 4);
-    print(",");
-    print(src);
-    return true;
-  }
-
-  private boolean dAsmLddYZQ (int opcode) {
-    String src;
-    switch (opcode & 0xD208) {
-      case 0x8000: printInst("ldd");  src = "Z+";  break;         // 1000 000d dddd 0000
-      case 0x8008: printInst("ldd");  src = "Y+";  break;         // 1000 000d dddd 1000
-      default: return false;
-    }
-    int qq = ((opcode & 0x2000) >> 8) + ((opcode & 0x0C00) >> 7) + (opcode & 0x07);
-    printDstReg((opcode & 0x1F0) >> 4);
-    print(",");
-    print(src);
-    printDec(qq);
-    return true;
-  }
-
-  private boolean dAsmStdYZQ (int opcode) {
-    switch (opcode & 0xD208) {
-      case 0x8200: printInst("std");  print("Z+");  break;         // 1000 001r rrrr 0000
-      case 0x8208: printInst("std");  print("Y+");  break;         // 1000 001r rrrr 1000
-      default: return false;
-    }
-    int qq = ((opcode & 0x2000) >> 8) + ((opcode & 0x0C00) >> 7) + (opcode & 0x07);
-    printDec(qq);
-    print(",");
-    printDstReg((opcode & 0x1F0) >> 4);
-    return true;
-  }
-
-  private boolean dAsmRelCallJmp (int opcode) {
-    switch (opcode & 0xF000) {
-      case 0xC000: printInst("rjmp");  return true;               // 1100 kkkk kkkk kkkk
-      case 0xD000: printInst("rcall"); return true;               // 1101 kkkk kkkk kkkk
-    }
-    return false;
-  }
-
-  private boolean dAsmBitOps2  (int opcode) {
-    switch (opcode & 0xFF00) {
-      case 0x9800: printInst("cbi");   return true;               // 1001 1000 AAAA Abbb
-      case 0x9900: printInst("sbic");  return true;               // 1001 1001 AAAA Abbb
-      case 0x9A00: printInst("sbi");   return true;               // 1001 1010 AAAA Abbb
-      case 0x9B00: printInst("sbis");  return true;               // 1001 1011 AAAA Abbb
-    }
-    return false;
-  }
-
-  private boolean dAsmByteImd (int opcode) {
-    switch (opcode & 0xF000) {
-      case 0x3000: printInst("cpi");   return true;               // 0011 KKKK dddd KKKK
-      case 0x4000: printInst("sbci");  return true;               // 0100 KKKK dddd KKKK
-      case 0x5000: printInst("subi");  return true;               // 0101 KKKK dddd KKKK
-      case 0x6000: printInst("ori");   return true;               // 0110 KKKK dddd KKKK
-      case 0x7000: printInst("andi");  return true;               // 0111 KKKK dddd KKKK
-      case 0xE000: printInst("ldi");   return true;               // 1110 KKKK dddd KKKK
-    }
-    return false;
-  }
-
-  private boolean dAsmArith (int opcode) {
-    switch (opcode & 0xFC00) {
-      case 0x0400: printInst("cpc");   return true;               // 0000 01rd dddd rrrr
-      case 0x0800: printInst("sbc");   return true;               // 0000 10rd dddd rrrr
-      case 0x0C00: printInst("add");   return true;               // 0000 11rd dddd rrrr
-      case 0x1000: printInst("cpse");  return true;               // 0001 00rd dddd rrrr
-      case 0x1400: printInst("cp ");   return true;               // 0001 01rd dddd rrrr
-      case 0x1800: printInst("sub");   return true;               // 0001 10rd dddd rrrr
-      case 0x1C00: printInst("adc");   return true;               // 0001 11rd dddd rrrr
-      case 0x2000: printInst("and");   return true;               // 0010 00rd dddd rrrr
-      case 0x2400: printInst("eor");   return true;               // 0010 01rd dddd rrrr
-      case 0x2800: printInst("or");    return true;               // 0010 10rd dddd rrrr
-      case 0x2C00: printInst("mov");   return true;               // 0010 11rd dddd rrrr
-      case 0x9C00: printInst("mul");   return true;               // 1001 11rd dddd rrrr
-    }
-    return false;
-  }
-
-  private boolean dAsmWordImd (int opcode) {
-    switch (opcode & 0xFF00) {
-      case 0x9600: printInst("adiw"); return true;               // 1001 0110 KKdd KKKK
-      case 0x9700: printInst("sbiw"); return true;               // 1001 0111 KKdd KKKK
-    }
-    return false;
-  }
-
-  private boolean dAsmBitOps (int opcode) {
-    switch (opcode & 0xFE08) {
-      case 0xF800: printInst("bld");   return true;             // 1111 100d dddd 0bbb
-      case 0xFA00: printInst("bst");   return true;             // 1111 101d dddd 0bbb
-      case 0xFC00: printInst("sbrc");  return true;             // 1111 110r rrrr 0bbb
-      case 0xFE00: printInst("sbrs");  return true;             // 1111 111r rrrr 0bbb
-    }
-    return false;
-  }
-
-  private boolean dAsmBranch (int opcode) {
-    switch (opcode & 0xFC07) {
-      case 0xF000: printInst("brcs"); return true;              // 1111 00kk kkkk k000
-      case 0xF001: printInst("breq"); return true;              // 1111 00kk kkkk k001
-      case 0xF002: printInst("brmi"); return true;              // 1111 00kk kkkk k010
-      case 0xF003: printInst("brvs"); return true;              // 1111 00kk kkkk k011
-      case 0xF004: printInst("brlt"); return true;              // 1111 00kk kkkk k100
-      case 0xF005: printInst("brhs"); return true;              // 1111 00kk kkkk k101
-      case 0xF006: printInst("brts"); return true;              // 1111 00kk kkkk k110
-      case 0xF007: printInst("brie"); return true;              // 1111 00kk kkkk k111
-      case 0xF400: printInst("brcc"); return true;              // 1111 01kk kkkk k000
-      case 0xF401: printInst("brne"); return true;              // 1111 01kk kkkk k001
-      case 0xF402: printInst("brpl"); return true;              // 1111 01kk kkkk k010
-      case 0xF403: printInst("brvc"); return true;              // 1111 01kk kkkk k011
-      case 0xF404: printInst("brge"); return true;              // 1111 01kk kkkk k100
-      case 0xF405: printInst("brhc"); return true;              // 1111 01kk kkkk k101
-      case 0xF406: printInst("brtc"); return true;              // 1111 01kk kkkk k110
-      case 0xF407: printInst("brid"); return true;              // 1111 01kk kkkk k111
-    }
-    return false;
-  }
-
-  private boolean dAsmMul (int opcode) {
-    switch (opcode & 0xFF88) {
-      case 0x0300: printInst("mulsu");   return true;           // 0000 0011 0ddd 0rrr
-      case 0x0308: printInst("fmul");    return true;           // 0000 0011 0ddd 1rrr
-      case 0x0380: printInst("fmuls");   return true;           // 0000 0011 1ddd 0rrr
-      case 0x0388: printInst("fmulsu");  return true;           // 0000 0011 1ddd 1rrr
-    }
-    return false;
-  }
-
+  /**
+   * @return text written so far, if output goes to the in memory buffer, or to a StringBuilder
+   */
   String getDisAsm () {
-    return new String(bout.toByteArray(), StandardCharsets.UTF_8);
+    return out instanceof CharSequence ? out.toString() : "";
   }
 
   /*
@@ -520,40 +1411,9 @@ public class AVRDisassembler {
    */
 
   public static void main (String[] args) throws Exception {
-    ByteArrayOutputStream buf = new ByteArrayOutputStream();
-    int base = 0;
-    InputStream fis;
-    fis = AVRDisassembler.class.getResourceAsStream("optiboot_atmega328.hex");
-    byte[] data = new byte[fis.available()];
-    if (fis.read(data) == data.length) {
-      fis.close();
-      String hex = new String(data, StandardCharsets.UTF_8);
-      boolean needAddr = true;
-      StringTokenizer tok = new StringTokenizer(hex, "\n\r");
-      while (tok.hasMoreTokens()) {
-        String line = tok.nextToken();
-        if (line.startsWith(":")) {
-          if (needAddr) {
-            String add = line.substring(3, 7);
-            base = Integer.parseInt(add, 16);
-            needAddr = false;
-          }
-          String type = line.substring(7, 9);
-          line = line.substring(9, line.length() - 2);
-          if (type.equals("00")) {
-            int len = line.length();
-            for (int ii = 0; ii < len; ii += 2) {
-              String bHex = line.substring(ii, ii + 2);
-              byte tmp = (byte) Integer.parseInt(bHex, 16);
-              buf.write(tmp);
-            }
-          }
-        }
-      }
-      byte[] code = buf.toByteArray();
-      AVRDisassembler disAsm = new AVRDisassembler();
-      disAsm.dAsm(code, 0, base, code.length / 2);
-      System.out.println(disAsm.getDisAsm());
-    }
+    IntelHex hex = IntelHex.read(AVRDisassembler.class.getResourceAsStream("optiboot_atmega328.hex"));
+    AVRDisassembler disAsm = new AVRDisassembler();
+    disAsm.dAsm(hex.data, 0, hex.base, hex.data.length / 2);
+    System.out.println(disAsm.getDisAsm());
   }
 }
@@ -0,0 +1,1344 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Implements the host side of the STK500V1, STK500V2 and Caterina (AVR109 subset) bootloader protocols
+ *  over any SerialTransport
+ *  Author: Wayne Holder, 2019
+ *  License: MIT (https://opensource.org/licenses/MIT)
+ */
+class ArduinoBootDriver implements SerialTransport.RXEvent {
+  private static final boolean  DEBUG = false;
+  private static final int      STKV2_BLOCK = 256;      // Largest CMD_READ_FLASH_ISP the STKV2 bootloader handles
+  private static final int      CATERINA_WINDOW = 8;    // 'g' commands per write (USB flow control prevents overrun)
+  private static final int      WINDOW_REGROW = 8;      // Clean STKV1 windows before a shrunk window is doubled again
+  private static final int      CYCLE_WINDOW = 800;     // ms after reset to try each rate in (Optiboot's watchdog is 1 sec)
+  private static final int      CYCLE_TIMEOUT = 120;    // ms to wait for reply to sync at each rate in the cycle
+  private static final int      SPARSE_PAGE = 256;      // Page size used by readFlashSparse() to skip erased flash
+  private static final int      SPARSE_PROBE = 16;      // Bytes read at the start of each page to check if it's blank
+  // STKV2 commands read by getDeviceInfo(), getSignature(), getFuses() and getVersion() (see queryStkV2())
+  private static final byte[][] STKV2_INFO = {
+    {0x1B, 0x00, 0x00, 0x00, 0, 0x00},                    // CMD_READ_SIGNATURE_ISP (high)
+    {0x1B, 0x00, 0x00, 0x00, 1, 0x00},                    // CMD_READ_SIGNATURE_ISP (middle)
+    {0x1B, 0x00, 0x00, 0x00, 2, 0x00},                    // CMD_READ_SIGNATURE_ISP (low)
+    {0x18, 0x00, 0x50, 0x00, 0x00, 0x00},                 // CMD_READ_FUSE_ISP (low)
+    {0x18, 0x00, 0x00, 0x00, 0x00, 0x00},                 // CMD_READ_FUSE_ISP (high)
+    {0x18, 0x00, 0x50, 0x08, 0x00, 0x00},                 // CMD_READ_FUSE_ISP (extended)
+    {0x1A, 0x04, 0x58, 0x00, 0x00, 0x00},                 // CMD_READ_LOCK_ISP
+    {0x1C, 0x04, 0x38, 0x00, 0x00, 0x00},                 // CMD_READ_OSCCAL_ISP
+    {0x03, (byte) 0x91},                                  // CMD_GET_PARAMETER (PARAM_SW_MAJOR)
+    {0x03, (byte) 0x92},                                  // CMD_GET_PARAMETER (PARAM_SW_MINOR)
+  };
+  private static final int[]    STKV2_INFO_BYTES = {4, 4, 4, 4, 4, 4, 4, 4, 3, 3};
+  enum Protocol {STKV1, CATERINA, STKV2}
+  private SerialTransport     jPort;
+  private Listener            listener;
+  private Protocol            tryFirst;
+  private ProtocolCache       cache;
+  private final CommandEncoder encoder = new CommandEncoder();
+  private byte[]              rxBuf = new byte[512];  // Replies to the last commands sent (see send())
+  private int                 rxLen, len;
+  private byte                checksum;
+  private volatile int        state;
+  private long                deadline, idleTimeout, sendTime, firstByte, lastByte;
+  private RetryPolicy.Kind    kind;
+  private final RetryPolicy   policy = new RetryPolicy();
+  private int[]               expect = new int[1], replyEnd = new int[1];
+  private int                 expectCount, replies, replyStart, blockSize;
+  private int                 pipeline = 1, pipelineDepth = 1;        // STKV1 read window (see setPipelineDepth())
+  private int                 cleanBatches, regrowAfter = WINDOW_REGROW;
+  private int                 stkV2Batch = 1;         // STKV2 commands getDeviceInfo() sends in each write
+  private int                 writeNext;              // Address STKV2 writes next without CMD_LOAD_ADDRESS
+  private boolean             desync;
+  private volatile Protocol   protocol;
+  private int[]               baudRates = {115200, 57600, 19200, 14400, 7200};
+  private List<int[]>         retryRanges = new ArrayList<>();
+
+  interface Listener {
+    void status (String txt);
+  }
+
+  interface BlockHandler {
+    /**
+     * Called by readFlash() with each block of data as it's received
+     * @param addr address of first byte in block
+     * @param buf buffer containing block (only valid until this method returns)
+     * @param off offset of block in buf[]
+     * @param len number of bytes in block
+     * @return true to continue reading, or false to stop
+     */
+    boolean block (int addr, byte[] buf, int off, int len) throws Exception;
+  }
+
+  /**
+   * Snapshot of the device and bootloader identity returned by getDeviceInfo()
+   */
+  static class DeviceInfo {
+    byte[]  signature;      // High, middle, low
+    byte[]  fuses;          // Low, high, extended (null if the bootloader can't read fuses)
+    int     lockBits = -1;  // -1 if the bootloader can't read the lock bits
+    int     oscCal = -1;    // Oscillator calibration byte, or -1 if the bootloader can't read it
+    String  version;        // null if the bootloader can't report its version
+  }
+
+  /**
+   * @param jPort transport used to talk to the bootloader
+   * @param tryFirst protocol to probe first in sync(), or null if not known
+   * @param listener receives progress messages
+   */
+  ArduinoBootDriver (SerialTransport jPort, Protocol tryFirst, Listener listener) {
+    this.jPort = jPort;
+    this.tryFirst = tryFirst;
+    this.listener = listener;
+  }
+
+  /**
+   * @param cache persistent record of the protocol and baud rate last detected on each port, or null
+   */
+  void setCache (ProtocolCache cache) {
+    this.cache = cache;
+  }
+
+  Protocol getProtocol () {
+    return protocol;
+  }
+
+  /**
+   * @return RetryPolicy that sets the timeouts and retry limits from measurements of the link
+   */
+  RetryPolicy getRetryPolicy () {
+    return policy;
+  }
+
+  private List<Integer> getBaudRates () {
+    List<Integer> rates = new ArrayList<>();
+    int preferredRate = jPort.getBaudRate();
+    rates.add(preferredRate);
+    for (int rate : baudRates) {
+      if (rate != preferredRate) {
+        rates.add(rate);
+      }
+    }
+    return rates;
+  }
+
+  void close () {
+    jPort.close();
+  }
+
+  /**
+   * Engage the bootloader by first trying the protocol and baud rate cached for this port (if any) and then,
+   * if that fails, probing each protocol in turn starting with tryFirst
+   */
+  void sync () throws Exception {
+    listener.status("syncing");
+    pipeline = pipelineDepth;
+    cleanBatches = 0;
+    regrowAfter = WINDOW_REGROW;
+    String portName = jPort.getPortName();
+    String fingerprint = jPort.getFingerprint();
+    ProtocolCache.Entry entry = cache != null ? cache.get(portName, fingerprint) : null;
+    if (entry != null) {
+      if (probe(entry.protocol, entry.baudRate)) {
+        listener.status("\n");
+        return;
+      }
+      cache.remove(portName);
+    }
+    int first = tryFirst != null ? tryFirst.ordinal() : 0;
+    for (int ii = 0; ii < 3; ii++) {
+      Protocol type = Protocol.values()[(ii + first) % 3];
+      if (probe(type, 0)) {
+        int baudRate = jPort.getBaudRate();
+        if (protocol != tryFirst) {
+          switch (protocol) {
+            case STKV1:
+              listener.status("\nSTKV1-based Bootloader detected at " + baudRate +" baud\n");
+              break;
+            case CATERINA:
+              listener.status("\nCaterina-based Bootloader detected\n");
+              break;
+            case STKV2:
+              listener.status("\nSTKV2-based Bootloader detected\n");
+              break;
+          }
+        } else {
+          listener.status("\n");
+        }
+        if (cache != null) {
+          cache.put(portName, fingerprint, protocol, baudRate);
+        }
+        return;
+      }
+    }
+    jPort.close();
+    listener.status("\n");
+    throw new UnableToComply("Unable to Engage Bootloader");
+  }
+
+  /**
+   * Try to engage the bootloader using one protocol
+   * @param type protocol to try
+   * @param baud baud rate to use, or 0 to try all the rates in getBaudRates() (STKV1 only)
+   * @return true if bootloader responded (port is left open)
+   */
+  private boolean probe (Protocol type, int baud) throws Exception {
+    protocol = type;
+    blockSize = 0;
+    switch (type) {
+      case STKV1:
+        List<Integer> rates = baud != 0 ? Collections.singletonList(baud) : getBaudRates();
+        if (rates.size() > 1) {
+          int tried = cycleBaudRates(rates);
+          if (tried < 0) {
+            return true;
+          }
+          rates = rates.subList(tried, rates.size());
+        }
+        // Fall back to resetting the board for each rate not yet tried straight after a reset, as Optiboot
+        // exits once it sees a wrong rate
+        for (int baudRate : rates) {
+          policy.reset(getDefaultTimeout(), baudRate);
+          if (jPort.open(this, baudRate)) {
+            // Toggle DTR to RESET Arduino
+            jPort.setDTR(false);
+            Thread.sleep(100);
+            jPort.setDTR(true);
+            for (int retry = 0; retry < policy.getSyncAttempts(); retry++) {
+              listener.status(".");
+              command().put(0x30).put(0x20).end(0);
+              if (sendCmd()) {
+                jPort.setBaudRate(baudRate);
+                // Discard timing of the sync, which includes the time the board takes to reset
+                policy.reset(getDefaultTimeout(), baudRate);
+                return true;
+              }
+            }
+            jPort.close();
+          }
+        }
+        break;
+      case CATERINA:
+        for (int retry = 0; retry < policy.getSyncAttempts(); retry++) {
+          listener.status(".");
+          policy.reset(getDefaultTimeout(), jPort.getBaudRate());
+          jPort.touch1200();
+          if (jPort.open(this)) {
+            command().put('S').end(7);
+            // Note: bootloader only returns first 7 bytes of name
+            if (sendCmd() && isReply("CATERIN")) {
+              return true;
+            }
+            jPort.close();
+          }
+        }
+        break;
+      case STKV2:
+        int baudRate = baud != 0 ? baud : jPort.getBaudRate();
+        policy.reset(getDefaultTimeout(), baudRate);
+        if (jPort.open(this, baudRate)) {
+          // Toggle DTR to RESET Arduino
+          jPort.setDTR(false);
+          Thread.sleep(100);
+          jPort.setDTR(true);
+          for (int retry = 0; retry < policy.getSyncAttempts(); retry++) {
+            listener.status(".");
+            command().put(0x01).end(8);
+            if (sendCmd()) {
+              // Discard timing of the sign on, which includes the time the board takes to reset
+              policy.reset(getDefaultTimeout(), baudRate);
+              return true;
+            }
+          }
+          jPort.close();
+        }
+        break;
+    }
+    return false;
+  }
+
+  /**
+   * Reset the board once and then send the STKV1 sync command at each baud rate in turn, changing the rate of
+   * the open port, rather than reopening it, so the board isn't reset again.  Each rate gets a short timeout
+   * so the whole cycle fits in the time Optiboot's watchdog gives the bootloader after a reset.  Optiboot
+   * exits on the framing errors a wrong rate causes, so only the first rate can find it, but older
+   * bootloaders, such as the ATmegaBOOT on a 19200 baud Diecimila, ignore a few and are found without
+   * another reset.
+   * @param rates baud rates to try, in order
+   * @return -1 if bootloader responded (port is left open at the rate found), otherwise the number of rates
+   * tried straight after the reset (the first one, if the port opened), which needn't be tried again
+   */
+  private int cycleBaudRates (List<Integer> rates) throws Exception {
+    if (!jPort.open(this, rates.get(0))) {
+      return 0;
+    }
+    // Toggle DTR to RESET Arduino (bootloader is running by the time the delay ends)
+    jPort.setDTR(false);
+    Thread.sleep(100);
+    jPort.setDTR(true);
+    long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CYCLE_WINDOW);
+    for (int ii = 0; ii < rates.size(); ii++) {
+      int baudRate = rates.get(ii);
+      if (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CYCLE_TIMEOUT) > end ||
+          (ii > 0 && !jPort.changeBaudRate(baudRate))) {
+        break;
+      }
+      listener.status(".");
+      policy.reset(CYCLE_TIMEOUT, baudRate);
+      command().put(0x30).put(0x20).end(0);
+      if (sendCmd()) {
+        jPort.setBaudRate(baudRate);
+        policy.reset(getDefaultTimeout(), baudRate);
+        return -1;
+      }
+    }
+    jPort.close();
+    return 1;
+  }
+
+  /**
+   * @return timeout, in milliseconds, used until RetryPolicy has measured the link
+   */
+  private int getDefaultTimeout () {
+    return protocol == Protocol.STKV1 ? 1000 : 500;
+  }
+
+  /**
+   * Send the protocol's sync, or sign on command to check the bootloader is still engaged, which also
+   * resets the bootloader's timeout
+   * @return true if bootloader responded
+   */
+  boolean ping () throws Exception {
+    if (protocol == Protocol.CATERINA) {
+      command().put('S').end(7);
+      return sendCmd() && isReply("CATERIN");
+    } else if (protocol == Protocol.STKV1)  {
+      command().put(0x30).put(0x20).end(0);
+      return sendCmd();
+    } else if (protocol == Protocol.STKV2)  {
+      command().put(0x01).end(8);
+      return sendCmd();
+    }
+    return false;
+  }
+
+  /**
+   * @return interval in milliseconds at which ping() should be called to keep the bootloader from timing
+   * out and starting the application (Optiboot's watchdog is 1 second, Caterina's timeout is 8 seconds)
+   */
+  int getKeepAliveInterval () {
+    if (protocol == Protocol.CATERINA) {
+      return 2000;
+    } else if (protocol == Protocol.STKV1)  {
+      return 250;
+    }
+    return 500;
+  }
+
+  /**
+   * Start encoding a single command in encoder, to be sent by sendCmd()
+   */
+  private CommandEncoder command () {
+    encoder.reset(protocol == Protocol.STKV2);
+    return encoder.begin();
+  }
+
+  /**
+   * Send the command started by command() and wait for its reply, which is left in rxBuf, starting at
+   * offset 0 and rxLen bytes long, so queries don't allocate a copy of each command and reply
+   * @return true if the reply was received before a timeout
+   */
+  private boolean sendCmd () throws Exception {
+    if (DEBUG) {
+      System.out.print("sendCmd(): ");
+      byte[] cmd = encoder.array();
+      for (int ii = 0; ii < encoder.length(); ii++) {
+        System.out.print(toHex(cmd[ii]) + " ");
+      }
+      System.out.println(" - " + encoder.expected()[0]);
+    }
+    return send() == 1;
+  }
+
+  /**
+   * @return true if the reply in rxBuf matches text
+   */
+  private boolean isReply (String text) {
+    if (rxLen != text.length()) {
+      return false;
+    }
+    for (int ii = 0; ii < rxLen; ii++) {
+      if (rxBuf[ii] != text.charAt(ii)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return offset in rxBuf of the reply to command ii of the last commands sent (see send())
+   */
+  private int replyOffset (int ii) {
+    return ii > 0 ? replyEnd[ii - 1] : 0;
+  }
+
+  /**
+   * Send the commands encoded in encoder in a single write and collect their replies, in order, in rxBuf,
+   * which is reused by each call, so the steady state read loops don't allocate
+   * @return number of replies received before a timeout, or loss of sync (reply ii ends at rxBuf offset
+   * replyEnd[ii] and starts where the previous reply ended)
+   */
+  private int send () throws Exception {
+    return send(null);
+  }
+
+  /**
+   * @param write RetryPolicy.Kind.WRITE if the commands program flash, or null to base the kind of
+   * timeout on the size of the replies expected
+   */
+  private int send (RetryPolicy.Kind write) throws Exception {
+    setupInput(encoder.length(), encoder.expected(), encoder.count(), write);
+    jPort.sendBytes(encoder.array(), 0, encoder.length());
+    waitForResponse();
+    synchronized (this) {
+      if (replies == expectCount && !desync) {
+        policy.update(kind, firstByte - sendTime, lastByte - firstByte, rxLen);
+      } else {
+        policy.timedOut();
+      }
+      return replies;
+    }
+  }
+
+  private void setupInput (int txBytes, int[] bytes, int count, RetryPolicy.Kind write) {
+    // Page reads get their own round trip estimate, as some bootloaders read the whole page before replying
+    int rxBytes = 0;
+    kind = write != null ? write : RetryPolicy.Kind.COMMAND;
+    for (int ii = 0; ii < count; ii++) {
+      rxBytes += bytes[ii] + (protocol == Protocol.STKV2 ? 8 : 2);
+      if (bytes[ii] >= 64 && write == null) {
+        kind = RetryPolicy.Kind.PAGE;
+      }
+    }
+    long wait = policy.getTimeout(kind, txBytes, rxBytes);
+    synchronized (this) {
+      state = 0;
+      rxLen = 0;
+      expect = bytes;
+      expectCount = count;
+      if (replyEnd.length < count) {
+        replyEnd = new int[count];
+      }
+      replies = 0;
+      replyStart = 0;
+      desync = false;
+      if (protocol == Protocol.CATERINA || protocol == Protocol.STKV1) {
+        len = bytes[0];
+      }
+      idleTimeout = policy.getIdleTimeout(kind);
+      firstByte = lastByte = 0;
+      sendTime = System.nanoTime();
+      deadline = sendTime + wait;
+    }
+  }
+
+  /**
+   * Checks if the replies to the last commands sent have been fully received
+   * Note: must be called while holding the lock on this driver
+   * @return true if all replies were received, or the batch lost sync with the bootloader
+   */
+  private boolean isComplete () {
+    return replies == expectCount || desync;
+  }
+
+  /**
+   * Blocks until rxBytes() signals the response is complete, or until the timeout set by setupInput()
+   * expires without the reply having started, or with no data received for RetryPolicy's idle timeout
+   */
+  private void waitForResponse () throws Exception {
+    synchronized (this) {
+      long now;
+      while (!isComplete() && (now = System.nanoTime()) < deadline) {
+        TimeUnit.NANOSECONDS.timedWait(this, deadline - now);
+      }
+      if (DEBUG && !isComplete()) {
+        System.out.println("TIMEOUT rxLen = " + rxLen + " protocol = " + protocol + " state = " + state);
+      }
+    }
+  }
+
+  /**
+   * Set the number of STKV1 Load Address/Read Page pairs readFlash() sends in each write.  The default of 1
+   * sends each pair in one write, which Optiboot always handles, as its replies to Load Address are short
+   * enough to fit in the UART's transmit buffer.  Larger windows save more round trips, but need a
+   * bootloader, or USB bridge that buffers commands while the bootloader is sending a page.  The window
+   * is halved each time readFlash() loses sync with the bootloader and doubled back toward pairs once
+   * enough writes in a row complete (WINDOW_REGROW at first, twice as many after each loss of sync, so a
+   * bootloader that can't handle the window isn't made to fail over and over), and sync() resets it.
+   * @param pairs number of pairs to keep in flight
+   */
+  void setPipelineDepth (int pairs) {
+    pipeline = pipelineDepth = Math.max(1, pairs);
+    cleanBatches = 0;
+    regrowAfter = WINDOW_REGROW;
+  }
+
+  /**
+   * Set the number of commands getDeviceInfo() sends to an STKV2 bootloader in each write.  The default of
+   * 1 waits for each reply before sending the next command, as the bootloader doesn't read the UART while
+   * it's sending a reply.  A larger batch needs a USB bridge that buffers commands until it's ready.
+   * @param commands number of commands to send in each write
+   */
+  void setStkV2BatchSize (int commands) {
+    stkV2Batch = Math.max(1, commands);
+  }
+
+  /**
+   * Try to regain sync after a failed command by waiting for the line to go quiet and then
+   * sending ping() and, if that fails, calling sync() to reset the board
+   * @param attempt number of failed attempts so far (sets how long to wait for the line to go quiet)
+   * @return true if bootloader is engaged again
+   */
+  private boolean resync (int attempt) throws Exception {
+    TimeUnit.NANOSECONDS.sleep(policy.getBackoff(attempt));
+    if (ping()) {
+      return true;
+    }
+    // Keep the shrunk STKV1 read window, as it's what stops the same loss of sync happening again
+    int window = pipeline, regrow = regrowAfter;
+    try {
+      sync();
+      pipeline = window;
+      regrowAfter = regrow;
+      return true;
+    } catch (UnableToComply ex) {
+      return false;
+    }
+  }
+
+  /**
+   * Read from Flash Memory into a single array
+   * @param addr address in bytes
+   * @param length number of bytes to read
+   */
+  byte[] readFlash (int addr, int length) throws Exception {
+    byte[] data = new byte[length];
+    readFlash(addr, length, (blockAddr, buf, off, len) -> {
+      System.arraycopy(buf, off, data, blockAddr - addr, len);
+      return true;
+    });
+    return data;
+  }
+
+  /**
+   * Read from Flash Memory in bootloader-sized blocks and pass each block to handler as soon as it arrives,
+   * so memory use is bounded by the block size, rather than by length.  If a block can't be read, the
+   * bootloader is resynced and the read resumes from the first block not yet passed to handler, so the
+   * blocks already read are kept.  The ranges that needed a retry are available from getRetryRanges().
+   * @param addr address in bytes
+   * @param length number of bytes to read
+   * @param handler receives each block in address order
+   * @return number of bytes passed to handler (less than length only if handler stopped the read)
+   */
+  int readFlash (int addr, int length, BlockHandler handler) throws Exception {
+    retryRanges = new ArrayList<>();
+    return readResumable('F', addr, length, handler);
+  }
+
+  /**
+   * Read from EEPROM into a single array
+   * @param addr address in bytes
+   * @param length number of bytes to read
+   */
+  byte[] readEeprom (int addr, int length) throws Exception {
+    byte[] data = new byte[length];
+    readEeprom(addr, length, (blockAddr, buf, off, len) -> {
+      System.arraycopy(buf, off, data, blockAddr - addr, len);
+      return true;
+    });
+    return data;
+  }
+
+  /**
+   * Read from EEPROM in bootloader-sized blocks, using the same paged reads, pipelining and resumable
+   * retries as readFlash().  Note: Optiboot only reads EEPROM if it was built with SUPPORT_EEPROM (or
+   * BIGBOOT), otherwise it returns flash, and some STKV2 bootloaders also return flash.
+   * @param addr address in bytes (STKV1 addresses EEPROM in words, so addr should be even)
+   * @param length number of bytes to read
+   * @param handler receives each block in address order
+   * @return number of bytes passed to handler (less than length only if handler stopped the read)
+   */
+  int readEeprom (int addr, int length, BlockHandler handler) throws Exception {
+    retryRanges = new ArrayList<>();
+    return readResumable('E', addr, length, handler);
+  }
+
+  /**
+   * @return list of {start, end} address ranges the last read had to retry after a failure, merged
+   * where they touch (empty if every block was read the first time)
+   */
+  List<int[]> getRetryRanges () {
+    return retryRanges;
+  }
+
+  /**
+   * @param memory 'F' to read flash, or 'E' to read EEPROM
+   */
+  private int readResumable (char memory, int addr, int length, BlockHandler handler) throws Exception {
+    if (DEBUG) {
+      System.out.println("readResumable(" + memory + ", " + toHex(addr) + ", " + length + ")");
+    }
+    int end = addr + length;
+    int[] next = {addr};                      // First address not yet passed to handler
+    int[] retryAt = {-1};                     // Address of block that failed, until it's read again
+    boolean[] stopped = new boolean[1];
+    BlockHandler checkpoint = (blockAddr, buf, off, len) -> {
+      if (retryAt[0] >= 0) {
+        addRetryRange(retryAt[0], blockAddr + len);
+        retryAt[0] = -1;
+      }
+      next[0] = blockAddr + len;
+      stopped[0] = !handler.block(blockAddr, buf, off, len);
+      return !stopped[0];
+    };
+    int failures = 0;
+    while (true) {
+      int from = next[0];
+      switch (protocol) {
+        case CATERINA:
+          readCaterina(memory, from, end, checkpoint);
+          break;
+        case STKV1:
+          readStkV1(memory, from, end, checkpoint);
+          break;
+        case STKV2:
+          readStkV2(memory, from, end, checkpoint);
+          break;
+      }
+      if (stopped[0] || next[0] >= end) {
+        return next[0] - addr;
+      }
+      if (next[0] > from) {
+        failures = 0;
+      }
+      retryAt[0] = next[0];
+      listener.status("Read failed at 0x" + toHex24(next[0]) + ", resyncing\n");
+      if (failures >= policy.getReadAttempts() || !resync(failures++)) {
+        addRetryRange(next[0], next[0]);
+        throw new UnableToComply("Error Reading " + (memory == 'E' ? "EEPROM" : "Flash") + " at 0x" + toHex24(next[0]));
+      }
+    }
+  }
+
+  private void addRetryRange (int start, int end) {
+    int[] last = retryRanges.isEmpty() ? null : retryRanges.get(retryRanges.size() - 1);
+    if (last != null && start <= last[1]) {
+      last[1] = Math.max(last[1], end);
+    } else {
+      retryRanges.add(new int[] {start, end});
+    }
+  }
+
+  /**
+   * Read blocks using Caterina's 'g' command, which auto increments the address, so send the address once
+   * and then stream a window of block reads per write
+   * Returns when all blocks are read, handler stops the read, or a block fails
+   */
+  private void readCaterina (char memory, int addr, int end, BlockHandler handler) throws Exception {
+    int blockSize = getBlockSize();
+    // Caterina takes a word address for flash, but a byte address for EEPROM
+    int wordAddr = memory == 'E' ? addr : addr >> 1;
+    command().put('A').put16(wordAddr).end(1);
+    if (!sendCmd() || rxBuf[0] != 0x0D) {
+      return;
+    }
+    while (addr < end) {
+      int count = Math.min(CATERINA_WINDOW, (end - addr + blockSize - 1) / blockSize);
+      encoder.reset(false);
+      for (int ii = 0; ii < count; ii++) {
+        int len = Math.min(blockSize, end - addr - ii * blockSize);
+        encoder.begin().put('g').put16(len).put(memory).end(len);
+      }
+      int got = send();
+      int[] bytes = encoder.expected();
+      for (int ii = 0; ii < got; ii++) {
+        if (!handler.block(addr, rxBuf, ii > 0 ? replyEnd[ii - 1] : 0, bytes[ii])) {
+          return;
+        }
+        addr += bytes[ii];
+      }
+      if (got < count) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Read blocks by sending a window of Load Address/Read Page pairs in each write and matching replies by order
+   * Returns when all blocks are read, handler stops the read, or a block fails
+   */
+  private void readStkV1 (char memory, int addr, int end, BlockHandler handler) throws Exception {
+    int blockSize = 256;
+    while (addr < end) {
+      int count = Math.min(pipeline, (end - addr + blockSize - 1) / blockSize);
+      encoder.reset(false);
+      for (int ii = 0; ii < count; ii++) {
+        int len = Math.min(blockSize, end - addr - ii * blockSize);
+        int wordAddr = (addr + ii * blockSize) >> 1;
+        if (DEBUG) {
+          System.out.println("addr: " + toHex(addr + ii * blockSize) + ", len: " + len);
+        }
+        encoder.begin().put(0x55).put(wordAddr).put(wordAddr >> 8).put(0x20).end(0);
+        encoder.begin().put(0x74).put16(len).put(memory).put(0x20).end(len);
+      }
+      int pairs = send() / 2;
+      int[] bytes = encoder.expected();
+      for (int ii = 0; ii < pairs; ii++) {
+        // Skip STK_INSYNC at start of Read Page reply
+        if (!handler.block(addr, rxBuf, replyEnd[ii * 2] + 1, bytes[ii * 2 + 1])) {
+          return;
+        }
+        addr += bytes[ii * 2 + 1];
+      }
+      if (pairs < count) {
+        // Shrink window in case the bootloader could not keep up with the commands in flight
+        pipeline = Math.max(1, pipeline / 2);
+        cleanBatches = 0;
+        regrowAfter = Math.min(regrowAfter * 2, 1 << 16);
+        return;
+      }
+      if (pipeline < pipelineDepth && ++cleanBatches >= regrowAfter) {
+        pipeline = Math.min(pipeline * 2, pipelineDepth);
+        cleanBatches = 0;
+      }
+    }
+  }
+
+  /**
+   * Read blocks using CMD_READ_FLASH_ISP, or CMD_READ_EEPROM_ISP, which auto increment the address, so
+   * CMD_LOAD_ADDRESS is only needed once
+   * Returns when all blocks are read, handler stops the read, or a block fails
+   */
+  private void readStkV2 (char memory, int addr, int end, BlockHandler handler) throws Exception {
+    // Bit 31 tells the bootloader to also load the extended address byte on parts with more than 128K
+    int wordAddr = memory == 'E' ? addr : (addr >> 1) | (end > 0x20000 ? 0x80000000 : 0);
+    // CMD_LOAD_ADDRESS
+    command().put(0x06).put32(wordAddr).end(2);
+    if (!sendCmd() || rxLen != 2 || rxBuf[1] != 0) {
+      return;
+    }
+    while (addr < end) {
+      int len = Math.min(STKV2_BLOCK, end - addr);
+      // CMD_READ_FLASH_ISP, or CMD_READ_EEPROM_ISP
+      encoder.reset(true);
+      encoder.begin().put(memory == 'E' ? 0x16 : 0x14).put16(len).put(0x00).end(len + 3);
+      if (send() != 1 || rxLen != len + 3 || rxBuf[1] != 0) {
+        return;
+      }
+      if (!handler.block(addr, rxBuf, 2, len)) {
+        return;
+      }
+      addr += len;
+    }
+  }
+
+  /**
+   * Read from Flash Memory into a single array, skipping erased regions (see readFlashSparse())
+   * @param addr address in bytes
+   * @param length number of bytes to read
+   * @param blankPages number of consecutive blank pages after which erased flash is skipped
+   * @return data read (skipped regions are filled with 0xFF)
+   */
+  byte[] readFlashSparse (int addr, int length, int blankPages) throws Exception {
+    byte[] data = new byte[length];
+    Arrays.fill(data, (byte) 0xFF);
+    readFlashSparse(addr, length, blankPages, (blockAddr, buf, off, len) -> {
+      System.arraycopy(buf, off, data, blockAddr - addr, len);
+      return true;
+    });
+    return data;
+  }
+
+  /**
+   * Read from Flash Memory, but once blankPages pages in a row read as erased (all 0xFF), stop reading
+   * and only probe the first few bytes of each following page until a probe finds programmed data, then
+   * resume reading from that page.  This is much faster for a small sketch on a large part, but will
+   * miss data in a page that starts with SPARSE_PROBE bytes of 0xFF, so use readFlash() when every
+   * byte matters.
+   * @param addr address in bytes
+   * @param length number of bytes to read
+   * @param blankPages number of consecutive blank pages after which erased flash is skipped
+   * @param handler receives each block read, in address order (skipped regions are not passed)
+   * @return number of bytes passed to handler
+   */
+  int readFlashSparse (int addr, int length, int blankPages, BlockHandler handler) throws Exception {
+    retryRanges = new ArrayList<>();
+    int end = addr + length;
+    int total = 0;
+    int[] blank = new int[1];
+    boolean[] stopped = new boolean[1];
+    while (addr < end) {
+      blank[0] = 0;
+      int count = readResumable('F', addr, end - addr, (blockAddr, buf, off, len) -> {
+        if (!handler.block(blockAddr, buf, off, len)) {
+          stopped[0] = true;
+          return false;
+        }
+        blank[0] = isBlank(buf, off, len) ? blank[0] + len : 0;
+        return blank[0] < blankPages * SPARSE_PAGE;
+      });
+      addr += count;
+      total += count;
+      if (stopped[0]) {
+        break;
+      }
+      // Probe ahead, one page at a time, for the next page with programmed data
+      while (addr < end && isBlank(addr, Math.min(SPARSE_PROBE, end - addr))) {
+        addr += Math.min(SPARSE_PAGE, end - addr);
+      }
+    }
+    return total;
+  }
+
+  private boolean isBlank (int addr, int length) throws Exception {
+    boolean[] blank = new boolean[1];
+    readResumable('F', addr, length, (blockAddr, buf, off, len) -> {
+      blank[0] = isBlank(buf, off, len);
+      return true;
+    });
+    return blank[0];
+  }
+
+  private static boolean isBlank (byte[] buf, int off, int len) {
+    for (int ii = off; ii < off + len; ii++) {
+      if (buf[ii] != (byte) 0xFF) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Program an image into Flash Memory, one flash page at a time.  Each bootloader erases a page before
+   * programming it, so pages the image doesn't use, or that are all 0xFF (the erased state) are skipped,
+   * rather than written, and are left as they were (like avrdude's -D option).  Partial pages are padded
+   * with 0xFF.  Writes are batched where the protocol allows it: Caterina streams a window of 'B' commands
+   * after a single 'A' (USB flow control holds them while each page is programmed), while STKV1 and STKV2
+   * send each page in one write, as their bootloaders can't receive while they program a page, and STKV2
+   * only sends CMD_LOAD_ADDRESS when the next page doesn't follow the last one.  If verify is set, each
+   * batch is read back and compared before moving on.  A failed, or mismatched batch is resynced and
+   * written again, up to RetryPolicy's read attempts.
+   * @param hex image to program
+   * @param pageSize size of the device's flash pages in bytes
+   * @param verify true to read back each batch of pages after it's written
+   * @return number of bytes programmed
+   */
+  int writeFlash (IntelHex hex, int pageSize, boolean verify) throws Exception {
+    if (protocol == Protocol.CATERINA && getBlockSize() < pageSize) {
+      throw new UnableToComply("Bootloader's block size is smaller than a page");
+    }
+    // Lay the image out in whole pages and list the pages that need to be programmed
+    int first = hex.base / pageSize * pageSize;
+    int[] pages = new int[(hex.end - first + pageSize - 1) / pageSize];
+    byte[] data = new byte[pages.length * pageSize];
+    Arrays.fill(data, (byte) 0xFF);
+    System.arraycopy(hex.data, 0, data, hex.base - first, hex.data.length);
+    int count = 0;
+    for (int ii = 0; ii < pages.length; ii++) {
+      if (!isBlank(data, ii * pageSize, pageSize)) {
+        pages[count++] = first + ii * pageSize;
+      }
+    }
+    writeNext = -1;
+    int written = 0;
+    int failures = 0;
+    int idx = 0;
+    while (idx < count) {
+      // Caterina batches a run of consecutive pages, the others write one page at a time
+      int batch = 1;
+      while (protocol == Protocol.CATERINA && batch < CATERINA_WINDOW && idx + batch < count &&
+             pages[idx + batch] == pages[idx] + batch * pageSize) {
+        batch++;
+      }
+      int addr = pages[idx];
+      int off = addr - first;
+      boolean ok;
+      switch (protocol) {
+        case CATERINA:
+          ok = writeCaterina(addr, data, off, pageSize, batch);
+          break;
+        case STKV1:
+          ok = writeStkV1(addr, data, off, pageSize);
+          break;
+        default:
+          ok = writeStkV2(addr, data, off, pageSize);
+          break;
+      }
+      if (ok && verify) {
+        ok = isSame(addr, data, off, batch * pageSize);
+        writeNext = -1;
+        if (!ok) {
+          listener.status("Verify failed at 0x" + toHex24(addr) + ", writing again\n");
+        }
+      }
+      if (ok) {
+        idx += batch;
+        written += batch * pageSize;
+        failures = 0;
+        continue;
+      }
+      writeNext = -1;
+      listener.status("Write failed at 0x" + toHex24(addr) + ", resyncing\n");
+      if (failures >= policy.getReadAttempts() || !resync(failures++)) {
+        throw new UnableToComply("Error Writing Flash at 0x" + toHex24(addr));
+      }
+    }
+    return written;
+  }
+
+  /**
+   * Write a run of consecutive pages using Caterina's 'B' command, which auto increments the address,
+   * so the address is sent once, followed by every page in the same write
+   * @return true if every page was acknowledged
+   */
+  private boolean writeCaterina (int addr, byte[] data, int off, int pageSize, int count) throws Exception {
+    encoder.reset(false);
+    encoder.begin().put('A').put16(addr >> 1).end(1);
+    for (int ii = 0; ii < count; ii++) {
+      encoder.begin().put('B').put16(pageSize).put('F').put(data, off + ii * pageSize, pageSize).end(1);
+    }
+    if (send(RetryPolicy.Kind.WRITE) != count + 1) {
+      return false;
+    }
+    for (int ii = 0; ii <= count; ii++) {
+      if (rxBuf[ii] != 0x0D) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Write a page by sending a Load Address/Program Page pair in one write
+   * @return true if both commands were acknowledged
+   */
+  private boolean writeStkV1 (int addr, byte[] data, int off, int pageSize) throws Exception {
+    int wordAddr = addr >> 1;
+    encoder.reset(false);
+    encoder.begin().put(0x55).put(wordAddr).put(wordAddr >> 8).put(0x20).end(0);
+    encoder.begin().put(0x64).put16(pageSize).put('F').put(data, off, pageSize).put(0x20).end(0);
+    return send(RetryPolicy.Kind.WRITE) == 2;
+  }
+
+  /**
+   * Write a page using CMD_PROGRAM_FLASH_ISP, which auto increments the address, so CMD_LOAD_ADDRESS is
+   * only sent when the page doesn't follow the last one written
+   * @return true if the page was acknowledged
+   */
+  private boolean writeStkV2 (int addr, byte[] data, int off, int pageSize) throws Exception {
+    if (addr != writeNext) {
+      // Bit 31 tells the bootloader to also load the extended address byte on parts with more than 128K
+      int wordAddr = (addr >> 1) | (addr + pageSize > 0x20000 ? 0x80000000 : 0);
+      encoder.reset(true);
+      encoder.begin().put(0x06).put32(wordAddr).end(2);
+      if (send() != 1 || rxBuf[1] != 0) {
+        return false;
+      }
+    }
+    // Page mode, write page, 10 ms delay, then the ISP commands and poll values, which bootloaders ignore
+    encoder.reset(true);
+    encoder.begin().put(0x13).put16(pageSize).put(0xC1).put(10).put(0x40).put(0x4C).put(0x20).put(0x00)
+           .put(0x00).put(data, off, pageSize).end(2);
+    if (send(RetryPolicy.Kind.WRITE) != 1 || rxBuf[1] != 0) {
+      return false;
+    }
+    writeNext = addr + pageSize;
+    return true;
+  }
+
+  /**
+   * Read back part of Flash Memory and compare it with the data written
+   * @return true if it matches
+   */
+  private boolean isSame (int addr, byte[] data, int off, int length) throws Exception {
+    boolean[] same = {true};
+    readResumable('F', addr, length, (blockAddr, buf, bufOff, len) -> {
+      int dataOff = off + blockAddr - addr;
+      for (int ii = 0; ii < len; ii++) {
+        if (buf[bufOff + ii] != data[dataOff + ii]) {
+          same[0] = false;
+          return false;
+        }
+      }
+      return true;
+    });
+    return same[0];
+  }
+
+  /**
+   * Ask a Caterina bootloader for the size of its block buffer, which limits each 'g' and 'B' command
+   * @return block size in bytes (defaults to 128 if bootloader doesn't support the 'b' command)
+   */
+  private int getBlockSize () throws Exception {
+    if (blockSize == 0) {
+      command().put('b').end(3);
+      int size = sendCmd() && rxBuf[0] == 'Y' ? ((rxBuf[1] & 0xFF) << 8) + (rxBuf[2] & 0xFF) : 0;
+      blockSize = size > 0 ? size : 128;
+    }
+    return blockSize;
+  }
+
+  byte[] getSignature () throws Exception {
+    if (protocol == Protocol.CATERINA) {
+      command().put('s').end(3);
+      if (sendCmd()) {
+        return new byte[] {rxBuf[2], rxBuf[1], rxBuf[0]};
+      }
+    } else if (protocol == Protocol.STKV1)  {
+      command().put(0x75).put(0x20).end(3);
+      if (sendCmd() && rxLen == 5) {
+        return new byte[] {rxBuf[1], rxBuf[2], rxBuf[3]};
+      }
+    } else if (protocol == Protocol.STKV2)  {
+      byte[] val = new byte[3];
+      if (queryStkV2(0, 3, val) == 0x07) {
+        return val;
+      }
+    }
+    throw new UnableToComply("Unable to read device signature");
+  }
+
+  byte[] getFuses () throws Exception {
+    if (protocol == Protocol.CATERINA) {
+      encoder.reset(false);
+      encoder.begin().put('F').end(1);
+      encoder.begin().put('N').end(1);
+      encoder.begin().put('Q').end(1);
+      if (send() == 3) {
+        return new byte[] {rxBuf[0], rxBuf[1], rxBuf[2]};
+      }
+    } else if (protocol == Protocol.STKV1)  {
+      command().put(0x72).put(0x20).end(3);
+      if (sendCmd() && rxLen == 5) {
+        return new byte[] {rxBuf[1], rxBuf[2], rxBuf[3]};
+      }
+    } else if (protocol == Protocol.STKV2)  {
+      byte[] val = new byte[3];
+      if (queryStkV2(3, 3, val) == 0x07) {
+        return val;
+      }
+    }
+    throw new UnableToComply("Unable to read Fuses");
+  }
+
+  String getVersion () throws Exception {
+    if (protocol == Protocol.CATERINA) {
+      command().put('V').end(2);
+      if (sendCmd()) {
+        return (char) rxBuf[0] + "." + (char) rxBuf[1];
+      }
+    } else if (protocol == Protocol.STKV1)  {
+      encoder.reset(false);
+      encoder.begin().put(0x41).put(0x81).put(0x20).end(1);
+      encoder.begin().put(0x41).put(0x82).put(0x20).end(1);
+      if (send() == 2) {
+        return rxBuf[1] + "." + rxBuf[replyOffset(1) + 1];
+      }
+    } else if (protocol == Protocol.STKV2)  {
+      byte[] val = new byte[2];
+      if (queryStkV2(8, 2, val) == 0x03) {
+        return val[0] + "." + val[1];
+      }
+    }
+    throw new UnableToComply("Unable to read Bootloader version");
+  }
+
+  /**
+   * Read the signature, fuses, lock bits, oscillator calibration byte and bootloader version using as few
+   * writes as the bootloader can handle.  Caterina gets every command in one write, as USB flow control
+   * stops it overrunning (it has no command to read OSCCAL).  Optiboot can only buffer about 3 bytes while
+   * it's sending a reply, so STKV1 sends the version and signature commands, ordered so the longest reply
+   * is last, in one write and the fuse, lock and OSCCAL commands, which Optiboot doesn't implement, in a
+   * second.  STKV2 replies are too long for the bootloader to keep receiving while it sends them, so STKV2
+   * sends setStkV2BatchSize() commands in each write.
+   * @return DeviceInfo (fields the bootloader can't report are left unset)
+   */
+  DeviceInfo getDeviceInfo () throws Exception {
+    DeviceInfo info = new DeviceInfo();
+    if (protocol == Protocol.CATERINA) {
+      encoder.reset(false);
+      encoder.begin().put('s').end(3);
+      encoder.begin().put('F').end(1);
+      encoder.begin().put('N').end(1);
+      encoder.begin().put('Q').end(1);
+      encoder.begin().put('r').end(1);
+      encoder.begin().put('V').end(2);
+      int got = send();
+      if (got > 0) {
+        info.signature = new byte[] {rxBuf[2], rxBuf[1], rxBuf[0]};
+      }
+      if (got > 3) {
+        info.fuses = new byte[] {rxBuf[replyOffset(1)], rxBuf[replyOffset(2)], rxBuf[replyOffset(3)]};
+      }
+      if (got > 4) {
+        info.lockBits = rxBuf[replyOffset(4)] & 0xFF;
+      }
+      if (got > 5) {
+        info.version = (char) rxBuf[replyOffset(5)] + "." + (char) rxBuf[replyOffset(5) + 1];
+      }
+    } else if (protocol == Protocol.STKV1)  {
+      // Each STKV1 reply starts with STK_INSYNC, so data starts at replyOffset() + 1
+      encoder.reset(false);
+      encoder.begin().put(0x41).put(0x81).put(0x20).end(1);
+      encoder.begin().put(0x41).put(0x82).put(0x20).end(1);
+      encoder.begin().put(0x75).put(0x20).end(3);
+      int got = send();
+      if (got > 1) {
+        info.version = rxBuf[1] + "." + rxBuf[replyOffset(1) + 1];
+      }
+      if (got > 2) {
+        int off = replyOffset(2) + 1;
+        info.signature = new byte[] {rxBuf[off], rxBuf[off + 1], rxBuf[off + 2]};
+      }
+      encoder.reset(false);
+      encoder.begin().put(0x72).put(0x20).end(3);
+      encoder.begin().put(0x73).put(0x20).end(1);
+      encoder.begin().put(0x76).put(0x20).end(1);
+      got = send();
+      if (got > 0) {
+        info.fuses = new byte[] {rxBuf[1], rxBuf[2], rxBuf[3]};
+      }
+      if (got > 1) {
+        info.lockBits = rxBuf[replyOffset(1) + 1] & 0xFF;
+      }
+      if (got > 2) {
+        info.oscCal = rxBuf[replyOffset(2) + 1] & 0xFF;
+      }
+    } else if (protocol == Protocol.STKV2)  {
+      byte[] val = new byte[STKV2_INFO.length];
+      int ok = queryStkV2(0, STKV2_INFO.length, val);
+      if ((ok & 0x007) == 0x007) {
+        info.signature = Arrays.copyOfRange(val, 0, 3);
+      }
+      if ((ok & 0x038) == 0x038) {
+        info.fuses = Arrays.copyOfRange(val, 3, 6);
+      }
+      if ((ok & 0x040) != 0) {
+        info.lockBits = val[6] & 0xFF;
+      }
+      if ((ok & 0x080) != 0) {
+        info.oscCal = val[7] & 0xFF;
+      }
+      if ((ok & 0x300) == 0x300) {
+        info.version = val[8] + "." + val[9];
+      }
+    }
+    if (info.signature == null) {
+      throw new UnableToComply("Unable to read device signature");
+    }
+    return info;
+  }
+
+  /**
+   * Send count of the STKV2_INFO commands, starting at first, in writes of setStkV2BatchSize() commands
+   * @param val receives the value byte of each reply
+   * @return bit mask of the commands (bit 0 is first) whose reply was received, has the expected length
+   * and reports STATUS_CMD_OK
+   */
+  private int queryStkV2 (int first, int count, byte[] val) throws Exception {
+    int ok = 0;
+    for (int ii = 0; ii < count; ii += stkV2Batch) {
+      int batch = Math.min(stkV2Batch, count - ii);
+      encoder.reset(true);
+      for (int jj = 0; jj < batch; jj++) {
+        encoder.begin().put(STKV2_INFO[first + ii + jj]).end(STKV2_INFO_BYTES[first + ii + jj]);
+      }
+      int got = send();
+      for (int jj = 0; jj < got; jj++) {
+        int off = replyOffset(jj);
+        if (replyEnd[jj] - off == STKV2_INFO_BYTES[first + ii + jj] && rxBuf[off + 1] == 0) {
+          val[ii + jj] = rxBuf[off + 2];
+          ok |= 1 << (ii + jj);
+        }
+      }
+    }
+    return ok;
+  }
+
+  // Implement SerialTransport.RXEvent
+  public void rxBytes (byte[] buf, int off, int count) {
+    if (DEBUG) {
+      for (int ii = off; ii < off + count; ii++) {
+        byte cc = buf[ii];
+        System.out.println("REC: " + toHex(cc) + (cc >= 0x20 && cc < 0x7F ?" '" + (char) cc + "'" : "") +
+                           " - " + rxLen + ", state = " + state);
+      }
+    }
+    int end = off + count;
+    synchronized (this) {
+      // Each received block extends the deadline so slow responses don't time out while data is still arriving
+      long now = System.nanoTime();
+      if (firstByte == 0) {
+        firstByte = now;
+      }
+      lastByte = now;
+      deadline = Math.max(deadline, now + idleTimeout);
+      if (protocol == Protocol.CATERINA) {
+        // Replies have no framing, so split them using the expected length of each reply
+        rxPut(buf, off, count);
+        while (replies < expectCount && rxLen >= len) {
+          replyEnd[replies++] = len;
+          if (replies < expectCount) {
+            len += expect[replies];
+          }
+        }
+      } else if (protocol == Protocol.STKV1)  {
+        // Use state machine to track STK500 protocol
+        while (off < end) {
+          byte cc = buf[off++];
+          switch (state) {
+            case 0:
+              // Check for STK_INSYNC (0x14)
+              if (cc == 0x14) {
+                replyStart = rxLen;
+                rxPut(buf, off - 1, 1);
+                state = len > 0 ? 1 : 2;
+              } else if (replies > 0) {
+                // Anything else between replies means the bootloader lost track of the commands
+                desync = true;
+                state = 3;
+              }
+              break;
+            case 1:
+              // Copy as many of the data bytes as are available in this block
+              int run = Math.min(replyStart + len + 1 - rxLen, end - off + 1);
+              rxPut(buf, off - 1, run);
+              off += run - 1;
+              if (rxLen == replyStart + len + 1) {
+                state = 2;
+              }
+              break;
+            case 2:
+              // Check for STK_OK (0x10)
+              rxPut(buf, off - 1, 1);
+              if (cc == 0x10) {
+                replyEnd[replies++] = rxLen;
+                if (replies < expectCount) {
+                  len = expect[replies];
+                  state = 0;
+                } else {
+                  state = 3;
+                }
+              } else {
+                if (DEBUG) {
+                  System.out.println("STK_OK not found on Read");
+                }
+                if (expectCount > 1) {
+                  desync = true;
+                  state = 3;
+                } else {
+                  rxLen = 0;
+                  state = 0;
+                }
+              }
+              break;
+            case 3:               //  All replies received, ignore any extra bytes
+              off = end;
+              break;
+          }
+        }
+      } else if (protocol == Protocol.STKV2)  {
+        while (off < end) {
+          byte cc = buf[off++];
+          checksum ^= cc;
+          switch (state) {
+            case 0:               // Wait for MESSAGE_START (0x1B)
+              if (cc == 0x1B) {
+                checksum = cc;
+                state = 1;
+              }
+              break;
+            case 1:               // Wait for SEQUENCE_NUMBER (ignored)
+              state = 2;
+              break;
+            case 2:               //  Wait for MESSAGE_SIZE MSB byte
+              len = ((int) cc & 0xFF) << 8;
+              state = 3;
+              break;
+            case 3:               //  Wait for MESSAGE_SIZE LSB byte
+              len |= (int) cc & 0xFF;
+              state = len > 0 ? 4 : 0;
+              break;
+            case 4:               //  Wait for TOKEN (0x0E)
+              state = cc == 0x0E ? 5 : 0;
+              break;
+            case 5:               //  Copy as many of the <len> message bytes as are available in this block
+              int run = Math.min(len, end - off + 1);
+              for (int ii = off; ii < off + run - 1; ii++) {
+                checksum ^= buf[ii];
+              }
+              rxPut(buf, off - 1, run);
+              off += run - 1;
+              len -= run;
+              if (len == 0) {
+                state = 6;
+              }
+              break;
+            case 6:               //  Wait for CHECKSUM (1 byte)
+              if (checksum == 0) {
+                replyEnd[replies++] = rxLen;
+                state = replies < expectCount ? 0 : 7;
+              } else {
+                if (DEBUG) {
+                  System.out.println("Checksum error on Read");
+                }
+                if (expectCount > 1) {
+                  desync = true;
+                  state = 7;
+                } else {
+                  rxLen = 0;
+                  state = 0;
+                }
+              }
+              break;
+            case 7:               //  All messages received, ignore any extra bytes
+              off = end;
+              break;
+          }
+        }
+      }
+      if (isComplete()) {
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Append received bytes to rxBuf, growing it if needed (it's only grown, so it stops allocating once
+   * it's big enough for the largest batch of replies)
+   * Note: must be called while holding the lock on this driver
+   */
+  private void rxPut (byte[] src, int off, int count) {
+    if (rxLen + count > rxBuf.length) {
+      rxBuf = Arrays.copyOf(rxBuf, Math.max(rxBuf.length * 2, rxLen + count));
+    }
+    System.arraycopy(src, off, rxBuf, rxLen, count);
+    rxLen += count;
+  }
+
+  private static String toHex24 (int val) {
+    return toHex((byte) (val >> 16)) + toHex(val);
+  }
+
+  private static String toHex (int val) {
+    return toHex((byte) (val >> 8)) + toHex((byte) (val & 0xFF));
+  }
+
+  private static String toHex (byte data) {
+    int val = data & 0xFF;
+    return (val < 0x10 ? "0" : "") + Integer.toHexString(val).toUpperCase();
+  }
+}
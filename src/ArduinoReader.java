@@ -2,12 +2,17 @@
 import java.awt.*;
 import java.awt.event.*;
 
-import java.io.*;
-import java.nio.charset.StandardCharsets;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Map;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.prefs.Preferences;
 import javax.swing.*;
 import javax.swing.text.Document;
@@ -18,27 +23,48 @@ import javax.swing.text.Document;
  *  License: MIT (https://opensource.org/licenses/MIT)
  */
 public class ArduinoReader extends JFrame {
-  private static final boolean        DEBUG = false;
   private static final boolean        skipFF = true;
-  private enum                        Protocol {STKV1, CATERINA, STKV2}
   private static Font                 tFont;
   private static Map<String,MCU> devices = new HashMap<>();
   private transient Preferences       prefs = Preferences.userRoot().node(this.getClass().getName());
   private transient JSSCPort          jPort;
   private JEditorPane                 text;
-  private int                         tryFirst = 0;
-  private boolean                     firstTime = true;
+  private ArduinoBootDriver.Protocol  lastProtocol;
+  private transient ProtocolCache     protocolCache = new ProtocolCache(prefs);
+  private transient BootSession       session;
+  private transient FlashImage        image;
+  private String                      imagePort;
+  private boolean                     sessionMode = prefs.getBoolean("session.mode", false);
+  private boolean                     exhaustiveRead = prefs.getBoolean("read.exhaustive", true);
+  private boolean                     stopVerify = prefs.getBoolean("verify.stopFirst", true);
+  private boolean                     verifyWrite = prefs.getBoolean("write.verify", true);
+  private boolean                     followFlow = prefs.getBoolean("disasm.flow", false);
+  private int                         blankPages = prefs.getInt("read.blankPages", 16);
+  private int                         readWindow = prefs.getInt("read.window", 1);
+  private int                         queryBatch = prefs.getInt("query.batch", 1);
+  private boolean                     usbPortsOnly = prefs.getBoolean("allports.usbOnly", true);
+  private int                         portThreads = prefs.getInt("allports.threads", 48);
 
   static class MCU {
     String  name;
-    int     flashSize, base;
+    int     flashSize, base, pageSize, eepromSize, vectors;
     char    fuse;
 
-    MCU (String name, int flashSize, char fuse, int base) {
+    MCU (String name, int flashSize, char fuse, int base, int pageSize, int eepromSize, int vectors) {
       this.name = name;
       this.flashSize = flashSize;
       this.fuse = fuse;
       this.base = base;
+      this.pageSize = pageSize;
+      this.eepromSize = eepromSize;
+      this.vectors = vectors;
+    }
+
+    /**
+     * @return size of each interrupt vector in bytes (parts with more than 8K of flash use jmp)
+     */
+    int getVectorSize () {
+      return flashSize > 0x2000 ? 4 : 2;
     }
 
     /**
@@ -75,22 +101,22 @@ public class ArduinoReader extends JFrame {
     } else {
       tFont = new Font("Courier", Font.PLAIN, 12);
     }
-    // STK500V1-based Arduino Microcontrollers                           Flash  Boot (words)
-    devices.put("1E930A", new MCU("ATmega88A",   0x02000, 'E', 128));   // 8K,   1K
-    devices.put("1E930F", new MCU("ATmega88PA",  0x02000, 'E', 128));   // 8K,   1K
-    devices.put("1E9406", new MCU("ATmega168A",  0x04000, 'E', 256));   // 16K,  1K
-    devices.put("1E940B", new MCU("ATmega168PA", 0x04000, 'E', 256));   // 16K,  1K
-    devices.put("1E9514", new MCU("ATmega328",   0x08000, 'H', 256));   // 32K,  2K
-    devices.put("1E950F", new MCU("ATmega328P",  0x08000, 'H', 256));   // 32K,  2K
+    // STK500V1-based Arduino Microcontrollers                                          Flash  Boot (words)
+    devices.put("1E930A", new MCU("ATmega88A",   0x02000, 'E', 128,  64,  512, 26));   // 8K,   1K
+    devices.put("1E930F", new MCU("ATmega88PA",  0x02000, 'E', 128,  64,  512, 26));   // 8K,   1K
+    devices.put("1E9406", new MCU("ATmega168A",  0x04000, 'E', 256, 128,  512, 26));   // 16K,  1K
+    devices.put("1E940B", new MCU("ATmega168PA", 0x04000, 'E', 256, 128,  512, 26));   // 16K,  1K
+    devices.put("1E9514", new MCU("ATmega328",   0x08000, 'H', 256, 128, 1024, 26));   // 32K,  2K
+    devices.put("1E950F", new MCU("ATmega328P",  0x08000, 'H', 256, 128, 1024, 26));   // 32K,  2K
     // Caterina-based Arduino Microcontrollers
-    devices.put("1E9488", new MCU("ATmega16U4",  0x10000, 'H', 256));   // 64K,  2K
-    devices.put("1E9587", new MCU("ATmega32U4",  0x08000, 'H', 256));   // 32K,  2K
+    devices.put("1E9488", new MCU("ATmega16U4",  0x10000, 'H', 256, 128,  512, 43));   // 64K,  2K
+    devices.put("1E9587", new MCU("ATmega32U4",  0x08000, 'H', 256, 128, 1024, 43));   // 32K,  2K
     // STK500V2-based Arduino Microcontrollers
-    devices.put("1E9608", new MCU("ATmega640",   0x10000, 'H', 512));   // 64K,  4K
-    devices.put("1E9703", new MCU("ATmega1280",  0x20000, 'H', 512));   // 128K, 4K
-    devices.put("1E9704", new MCU("ATmega1281",  0x20000, 'H', 512));   // 128K, 4K
-    devices.put("1E9801", new MCU("ATmega2560",  0x40000, 'H', 512));   // 256K, 4K
-    devices.put("1E9802", new MCU("ATmega2561",  0x40000, 'H', 512));   // 256K, 4K
+    devices.put("1E9608", new MCU("ATmega640",   0x10000, 'H', 512, 256, 4096, 57));   // 64K,  4K
+    devices.put("1E9703", new MCU("ATmega1280",  0x20000, 'H', 512, 256, 4096, 57));   // 128K, 4K
+    devices.put("1E9704", new MCU("ATmega1281",  0x20000, 'H', 512, 256, 4096, 57));   // 128K, 4K
+    devices.put("1E9801", new MCU("ATmega2560",  0x40000, 'H', 512, 256, 4096, 57));   // 256K, 4K
+    devices.put("1E9802", new MCU("ATmega2561",  0x40000, 'H', 512, 256, 4096, 57));   // 256K, 4K
   }
 
   /*
@@ -211,450 +237,6 @@ public class ArduinoReader extends JFrame {
    *    0x92  PARAM_SW_MINOR
    */
 
-  static class UnableToComply extends Exception {
-    String  message;
-    UnableToComply (String message) {
-      this.message = message;
-    }
-  }
-
-  class ArduinoBootDriver implements JSSCPort.RXEvent {
-    private JSSCPort            jPort;
-    ByteArrayOutputStream       bout = new ByteArrayOutputStream();
-    private int                 len;
-    private byte                checksum, sendSeq;
-    private volatile int        state, timeout;
-    private volatile Protocol   protocol;
-    private int[]               baudRates = {115200, 57600, 19200, 14400, 7200};
-
-    ArduinoBootDriver (JSSCPort jPort) {
-      this.jPort = jPort;
-    }
-
-    private List<Integer> getBaudRates () {
-      List<Integer> rates = new ArrayList<>();
-      int preferredRate = jPort.getBaudRate();
-      rates.add(preferredRate);
-      for (int rate : baudRates) {
-        if (rate != preferredRate) {
-          rates.add(rate);
-        }
-      }
-      return rates;
-    }
-
-    private void close () {
-      jPort.close();
-    }
-
-    void sync () throws Exception {
-      appendText("syncing");
-      for (int ii = 0; ii < 3; ii++) {
-        int type = (ii + tryFirst) % 3;
-        switch (type) {
-        case 0:
-          protocol = Protocol.STKV1;
-          for (int baudRate : getBaudRates()) {
-            if (jPort.open(this, baudRate)) {
-              // Toggle DTR to RESET Arduino
-              jPort.setDTR(false);
-              Thread.sleep(100);
-              jPort.setDTR(true);
-              for (int retry = 0; retry < 3; retry++) {
-                appendText(".");
-                if (sendCmd(new byte[]{0x30, 0x20}, 0) != null) {
-                  if (firstTime || type != tryFirst) {
-                    appendText("\nSTKV1-based Bootloader detected at " + baudRate +" baud\n");
-                    jPort.setBaudRate(baudRate);
-                    firstTime = false;
-                  } else {
-                    appendText("\n");
-                  }
-                  tryFirst = 0;
-                  return;
-                }
-              }
-              jPort.close();
-            }
-          }
-          break;
-        case 1:
-          protocol = Protocol.CATERINA;
-          for (int retry =0; retry < 3; retry++) {
-            appendText(".");
-            jPort.touch1200();
-            if (jPort.open(this)) {
-              byte[] data = sendCmd(new byte[]{'S'}, 7);
-              // Note: bootloader only returns first 7 bytes of name
-              if (data.length == 7 && "CATERIN".equals(new String(data, StandardCharsets.UTF_8))) {
-                if (firstTime || type != tryFirst) {
-                  appendText("\nCaterina-based Bootloader detected\n");
-                  firstTime = false;
-                } else {
-                  appendText("\n");
-                }
-                tryFirst = 1;
-                return;
-              }
-              jPort.close();
-            }
-          }
-          break;
-        case 2:
-          protocol = Protocol.STKV2;
-          if (jPort.open(this)) {
-            // Toggle DTR to RESET Arduino
-            jPort.setDTR(false);
-            Thread.sleep(100);
-            jPort.setDTR(true);
-            for (int retry = 0; retry < 3; retry++) {
-              appendText(".");
-              byte[] rsp = sendCmd(new byte[]{0x01}, 8);
-              if (rsp != null) {
-                //System.out.println(new String(rsp, StandardCharsets.US_ASCII));
-                if (firstTime || type != tryFirst) {
-                  appendText("\nSTKV2-based Bootloader detected\n");
-                  firstTime = false;
-                } else {
-                  appendText("\n");
-                }
-                tryFirst = 2;
-                return;
-              }
-            }
-            jPort.close();
-          }
-          break;
-        }
-      }
-      jPort.close();
-      appendText("\n");
-      throw new UnableToComply("Unable to Engage Bootloader");
-    }
-
-    byte[] sendCmd (byte[] cmd, int bytes) throws Exception {
-      if (DEBUG) {
-        System.out.print("sendCmd(): ");
-        for (byte cc : cmd) {
-          System.out.print(toHex(cc) + " ");
-        }
-        System.out.println(" - " + bytes);
-      }
-      if (protocol == Protocol.CATERINA) {
-        setupInput(bytes);
-        jPort.sendBytes(cmd);
-        waitForResponse();
-        return bout.toByteArray();
-      } else if (protocol == Protocol.STKV1)  {
-        setupInput(bytes);
-        jPort.sendBytes(cmd);
-        waitForResponse();
-        return state == 3 ? bout.toByteArray() : null;
-      } else if (protocol == Protocol.STKV2)  {
-        byte[] buf = new byte[6 + cmd.length];
-        byte chk = 0;
-        chk ^= buf[0] = 0x1B;
-        chk ^= buf[1] = sendSeq;
-        chk ^= buf[2] = (byte) (cmd.length >> 8);
-        chk ^= buf[3] = (byte) (cmd.length & 0xFF);
-        chk ^= buf[4] = 0x0E;
-        int idx = 0;
-        while (idx < cmd.length) {
-          chk ^= buf[5 + idx] = cmd[idx++];
-        }
-        buf[5 + idx] = chk;
-        sendSeq++;
-        setupInput(bytes);
-        jPort.sendBytes(buf);
-        waitForResponse();
-        return state == 7 ? bout.toByteArray() : null;
-      }
-      return null;
-    }
-
-    private void setupInput (int bytes) {
-      if (protocol == Protocol.CATERINA) {
-        bout.reset();
-        timeout = 50;
-        len = bytes;
-      } else if (protocol == Protocol.STKV1)  {
-        state = 0;
-        bout.reset();
-        len = bytes;
-        timeout = 100;
-      } else if (protocol == Protocol.STKV2)  {
-        state = 0;
-        bout.reset();
-        len = bytes;
-        timeout = 50;
-      }
-    }
-
-    private void waitForResponse () throws Exception {
-      if (protocol == Protocol.CATERINA) {
-        while (timeout > 0) {
-          if (len == 0) {
-            return;
-          }
-          Thread.sleep(10);
-          synchronized (this) {
-            timeout--;
-          }
-        }
-      } else if (protocol == Protocol.STKV1)  {
-        while (timeout > 0) {
-          if (state == 3) {
-            return;
-          }
-          Thread.sleep(10);
-          synchronized (this) {
-            timeout--;
-          }
-        }
-      } else if (protocol == Protocol.STKV2)  {
-        while (timeout > 0) {
-          if (state == 7) {
-            return;
-          }
-          Thread.sleep(10);
-          synchronized (this) {
-            timeout--;
-          }
-        }
-      }
-      if (DEBUG) {
-        System.out.println("TIMEOUT bout.size() = " + bout.size() + " protocol = " + protocol + " state = " + state);
-      }
-    }
-
-    /**
-     * Read from Flasm Memory
-     * @param addr address in bytes
-     * @param length number of bytes to read
-     */
-    byte[] readFlash (int addr, int length) throws Exception {
-      System.out.println("readFlash()");
-      ByteArrayOutputStream buf = new ByteArrayOutputStream();
-      if (protocol == Protocol.CATERINA) {
-        int wordAddr = addr >> 1;
-        byte[] data;
-        data = sendCmd(new byte[]{'A', (byte) (wordAddr >> 8), (byte) (wordAddr & 0xFF)}, 1);
-        if (data.length == 1 && data[0] == 0x0D) {
-          data = sendCmd(new byte[]{'g', (byte) (length >> 8), (byte) (length & 0xFF), 'F'}, length);
-          if (data.length == length) {
-            return data;
-          }
-        }
-        return null;
-      } else if (protocol == Protocol.STKV1)  {
-        int blockSize = 256;
-        read_Loop:
-        while (length > 0) {
-          int len = length > blockSize ? blockSize : length;
-          int wordAddr = addr >> 1;
-          if (DEBUG) {
-            System.out.println("addr: " + toHex(addr) + ", len: " + len + ", length: " + length);
-          }
-          for (int ii =  0; ii < 4; ii++) {
-            if (sendCmd(new byte[]{0x55, (byte) (wordAddr & 0xFF), (byte) (wordAddr >> 8), 0x20}, 0) == null) {
-              return null;
-            }
-            byte[] rsp = sendCmd(new byte[]{0x74, (byte) (len >> 8), (byte) (len & 0xFF), 'F', 0x20}, len);
-            if (rsp!= null) {
-              buf.write(rsp, 1, len);
-              length -= blockSize;
-              addr += blockSize;
-              continue read_Loop;
-            }
-            if (DEBUG) {
-              System.out.println("Retry");
-            }
-          }
-          if (DEBUG) {
-            System.out.println("Retry Failed");
-          }
-          return null;
-        }
-        return buf.toByteArray();
-      } else if (protocol == Protocol.STKV2)  {
-        int wordAddr = addr >> 1;
-        // CMD_LOAD_ADDRESS
-        byte[] data = sendCmd(new byte[]{0x06, (byte) (wordAddr >> 24), (byte) (wordAddr >> 16),
-                                               (byte) (wordAddr >> 8), (byte) (wordAddr & 0xFF)}, 2);
-        if (data != null && data.length == 2 && data[1] == 0) {
-          // CMD_READ_FLASH_ISP
-          data = sendCmd(new byte[]{0x14, (byte) (length >> 8), (byte) (length & 0xFF), 0x00}, length + 3);
-          if (data != null && data.length == length + 3) {
-            byte[] ret = new byte[length];
-            System.arraycopy(data, 2, ret, 0, length);
-            return ret;
-          }
-        }
-      }
-      throw new UnableToComply("Error Reading Flash");
-    }
-
-    byte[] getSignature () throws Exception {
-      if (protocol == Protocol.CATERINA) {
-        byte[] data = sendCmd(new byte[]{'s'}, 3);
-        if (data.length == 3) {
-          return new byte[] {data[2], data[1], data[0]};
-        }
-      } else if (protocol == Protocol.STKV1)  {
-        byte[] rsp = sendCmd(new byte[]{0x75, 0x20}, 3);
-        if (rsp != null && rsp.length == 5) {
-          return new byte[]{rsp[1], rsp[2], rsp[3]};
-        }
-      } else if (protocol == Protocol.STKV2)  {
-        byte[] sigH = sendCmd(new byte[]{0x1B, 0x00, 0x00, 0x00, 0, 0x00}, 4);
-        if (sigH != null && sigH.length == 4) {
-          byte[] sigM = sendCmd(new byte[]{0x1B, 0x00, 0x00, 0x00, 1, 0x00}, 4);
-          if (sigM != null && sigM.length == 4) {
-            byte[] sigL = sendCmd(new byte[]{0x1B, 0x00, 0x00, 0x00, 2, 0x00}, 4);
-            return new byte[]{sigH[2], sigM[2], sigL[2]};
-          }
-        }
-      }
-      throw new UnableToComply("Unable to read device signature");
-    }
-
-    byte[] getFuses () throws Exception {
-      if (protocol == Protocol.CATERINA) {
-        byte[] lFuse = sendCmd(new byte[]{'F'}, 1);
-        if (lFuse.length == 1) {
-          byte[] hFuse = sendCmd(new byte[]{'N'}, 1);
-          if (hFuse.length == 1) {
-            byte[] eFuse = sendCmd(new byte[]{'Q'}, 1);
-            if (eFuse.length == 1) {
-              return new byte[]{lFuse[0], hFuse[0], eFuse[0]};
-            }
-          }
-        }
-      } else if (protocol == Protocol.STKV1)  {
-        byte[] rsp = sendCmd(new byte[]{0x72, 0x20}, 3);
-        if (rsp != null && rsp.length == 5) {
-          return new byte[]{rsp[1], rsp[2], rsp[3]};
-        }
-      } else if (protocol == Protocol.STKV2)  {
-        byte[] fuseH = sendCmd(new byte[]{0x18, 0x00, 0x00, 0x00, 0x00, 0x00}, 4);
-        if (fuseH != null && fuseH.length == 4) {
-          byte[] fuseL = sendCmd(new byte[]{0x18, 0x00, 0x50, 0x00, 0x00, 0x00}, 4);
-          if (fuseL != null && fuseL.length == 4) {
-            byte[] fuseE = sendCmd(new byte[]{0x18, 0x00, 0x50, 0x08, 0x00, 0x00}, 4);
-            return new byte[]{fuseL[2], fuseH[2], fuseE[2]};
-          }
-        }
-      }
-      throw new UnableToComply("Unable to read Fuses");
-    }
-
-    String getVersion () throws Exception {
-      if (protocol == Protocol.CATERINA) {
-        byte[] data = sendCmd(new byte[]{'V'}, 2);
-        if (data.length == 2) {
-          return (char) data[0] + "." + (char) data[1];
-        }
-      } else if (protocol == Protocol.STKV1)  {
-        byte[] major = sendCmd(new byte[]{0x41, (byte) 0x81, 0x20}, 1);
-        if (major != null) {
-          byte[] minor = sendCmd(new byte[]{0x41, (byte) 0x82, 0x20}, 1);
-          return major[1] + "." + minor[1];
-        }
-      } else if (protocol == Protocol.STKV2)  {
-        byte[] major = sendCmd(new byte[] {0x03, (byte) 0x91}, 3);
-        if (major != null && major.length == 3) {
-          byte[] minor = sendCmd(new byte[] {0x03, (byte) 0x92}, 3);
-          if (minor != null && minor.length == 3) {
-            return major[2] + "." + minor[2];
-          }
-        }
-      }
-      throw new UnableToComply("Unable to read Bootloader version");
-    }
-
-    // Implement JSSCPort.RXEvent
-    public void rxChar (byte cc) {
-      if (DEBUG) {
-        System.out.println("REC: " + toHex(cc) + (cc >= 0x20 && cc < 0x7F ?" '" + (char) cc + "'" : "") +
-                           " - " + bout.size() + ", state = " + state);
-      }
-      synchronized (this) {
-        timeout = 50;
-      }
-      if (protocol == Protocol.CATERINA) {
-        bout.write(cc);
-        synchronized (this) {
-          len--;
-        }
-      } else if (protocol == Protocol.STKV1)  {
-        bout.write(cc);
-        // Use state machine to track STK500 protocol
-        switch (state) {
-          case 0:
-            // Check for STK_INSYNC (0x14)
-            state = cc == 0x14 ? (len > 0 ? 1 : 2) : 0;
-            break;
-          case 1:
-            // Wait for all data bytes to be received
-            if (bout.size() == len + 1) {
-              state = 2;
-            }
-            break;
-          case 2:
-            // Check for STK_OK (0x10)
-            if (DEBUG) {
-              if (checksum != 0) {
-                System.out.println("STK_OK not found on Read");
-              }
-            }
-            state = cc == 0x10 ? 3 : 0;
-            break;
-        }
-      } else if (protocol == Protocol.STKV2)  {
-        checksum ^= cc;
-        switch (state) {
-          case 0:               // Wait for MESSAGE_START (0x1B)
-            if (cc == 0x1B) {
-              state = 1;
-            }
-            break;
-          case 1:               // Wait for SEQUENCE_NUMBER (ignored)
-            state = 2;
-            break;
-          case 2:               //  Wait for MESSAGE_SIZE MSB byte
-            len = (int) cc << 8;
-            state = 3;
-            break;
-          case 3:               //  Wait for MESSAGE_SIZE LSB byte
-            len |= (int) cc & 0xFF;
-            state = 4;
-            break;
-          case 4:               //  Wait for TOKEN (0x0E)
-            state = cc == 0x0E ? 5 : 0;
-            break;
-          case 5:               //  Wait for <len> message bytes
-            if (len-- > 0) {
-              bout.write(cc);
-            }
-            if (len == 0) {
-              state = 6;
-            }
-            break;
-          case 6:               //  Wait for CHECKSUM (1 byte)
-            if (DEBUG) {
-              if (checksum != 0) {
-                System.out.println("Checksum error on Read");
-              }
-            }
-            state = checksum == 0 ? 7 : 0;
-            break;
-          case 7:               //  Meesage Received and Checksum is Good
-            break;
-        }
-      }
-    }
-  }
-
   private ArduinoReader () {
     super("ArduinoReader");
     setBackground(Color.white);
@@ -673,258 +255,303 @@ public class ArduinoReader extends JFrame {
     JMenuItem mItem;
     actions.add(mItem = new JMenuItem("Get Version"));
     mItem.addActionListener(e -> {
-      Thread doAction = new Thread(() -> {
-        ArduinoBootDriver send = new ArduinoBootDriver(jPort);
-        try {
-          actions.setEnabled(false);
-          send.sync();
-          String version = send.getVersion();
-          appendText("Bootloader Version: " + version + "\n");
-        } catch (UnableToComply ex) {
-          appendText(ex.message + "\n");
-        } catch (Exception ex) {
-          ex.printStackTrace();
-          appendText(ex.toString() + "\n");
-        } finally {
-          send.close();
-          actions.setEnabled(true);
-        }
+      runAction(actions, send -> {
+        String version = send.getVersion();
+        appendText("Bootloader Version: " + version + "\n");
       });
-      doAction.start();
     });
     actions.add(mItem = new JMenuItem("Get Signature"));
     mItem.addActionListener(e -> {
-      Thread doAction = new Thread(() -> {
-        ArduinoBootDriver send = new ArduinoBootDriver(jPort);
-        try {
-          actions.setEnabled(false);
-          send.sync();
-          byte[] data = send.getSignature();
-          MCU device = devices.get(toHex(data[0]) + toHex(data[1]) + toHex(data[2]));
-          appendText("Signature: " + toHex(data[0]) + " " + toHex(data[1]) + " " + toHex(data[2]) +
-                    (device != null ? " - " + device.name : "") + "\n");
-        } catch (UnableToComply ex) {
-          appendText(ex.message + "\n");
-        } catch (Exception ex) {
-          ex.printStackTrace();
-          appendText(ex.toString() + "\n");
-        } finally {
-          send.close();
-          actions.setEnabled(true);
-        }
+      runAction(actions, send -> {
+        byte[] data = send.getSignature();
+        MCU device = devices.get(toHex(data[0]) + toHex(data[1]) + toHex(data[2]));
+        appendText("Signature: " + toHex(data[0]) + " " + toHex(data[1]) + " " + toHex(data[2]) +
+                  (device != null ? " - " + device.name : "") + "\n");
       });
-      doAction.start();
     });
     actions.add(mItem = new JMenuItem("Get Fuses"));
     mItem.addActionListener(e -> {
-      Thread doAction = new Thread(() -> {
-        ArduinoBootDriver send = new ArduinoBootDriver(jPort);
-        try {
-          actions.setEnabled(false);
-          send.sync();
-          byte[] data = send.getFuses();
+      runAction(actions, send -> {
+        byte[] data = send.getFuses();
+        appendText("Fuses - Low: " + toHex(data[0]) + ", High: " + toHex(data[1]) + ", Extd: " + toHex(data[2]) + "\n");
+      });
+    });
+    actions.add(mItem = new JMenuItem("Get Device Info"));
+    mItem.addActionListener(e -> {
+      runAction(actions, send -> {
+        ArduinoBootDriver.DeviceInfo info = send.getDeviceInfo();
+        byte[] data = info.signature;
+        MCU device = devices.get(toHex(data[0]) + toHex(data[1]) + toHex(data[2]));
+        appendText("Signature: " + toHex(data[0]) + " " + toHex(data[1]) + " " + toHex(data[2]) +
+                  (device != null ? " - " + device.name : "") + "\n");
+        if (info.fuses != null) {
+          data = info.fuses;
           appendText("Fuses - Low: " + toHex(data[0]) + ", High: " + toHex(data[1]) + ", Extd: " + toHex(data[2]) + "\n");
-        } catch (UnableToComply ex) {
-          appendText(ex.message + "\n");
-        } catch (Exception ex) {
-          ex.printStackTrace();
-          appendText(ex.toString() + "\n");
-        } finally {
-          send.close();
-          actions.setEnabled(true);
+        }
+        if (info.lockBits >= 0) {
+          appendText("Lock Bits: " + toHex((byte) info.lockBits) + "\n");
+        }
+        if (info.oscCal >= 0) {
+          appendText("OSCCAL: " + toHex((byte) info.oscCal) + "\n");
+        }
+        if (info.version != null) {
+          appendText("Bootloader Version: " + info.version + "\n");
         }
       });
-      doAction.start();
     });
     actions.add(mItem = new JMenuItem("Read Flash"));
     mItem.addActionListener(e -> {
       appendText("Read Flash\n");
-      Thread doAction = new Thread(() -> {
-        ArduinoBootDriver send = new ArduinoBootDriver(jPort);
-        try {
-          actions.setEnabled(false);
-          send.sync();
-          byte[] data = send.getSignature();
-          MCU device = devices.get(toHex(data[0]) + toHex(data[1]) + toHex(data[2]));
-          if (device != null) {
-            int flashSize = device.flashSize;
-            data = send.readFlash(0, flashSize);
-            boolean endOfCode = true;
-            StringBuilder buf = new StringBuilder();
-            int checksum = 0;
-            int innersum = 0;
-            for (int ii = 0; ii < data.length; ii++) {
-              if (ii % 32 == 0) {
-                buf.append(toHex((byte) (ii >> 8))).append(toHex((byte) (ii & 0xFF))).append(": ");
-                endOfCode = true;
-              }
-              if ((data[ii] & 0xFF) != 0xFF) {
-                endOfCode = false;
-              }
-              buf.append(toHex(data[ii]));
-              innersum += (int) data[ii] & 0xFF;
-              if (ii % 32 == 31) {
-                if (endOfCode) {
-                  break;
-                }
-                checksum += innersum;
-                innersum =  0;
-                buf.append("\n");
-                appendText(buf.toString());
-              } else {
-                buf.append(" ");
+      runAction(actions, send -> {
+        ArduinoBootDriver.DeviceInfo info = send.getDeviceInfo();
+        byte[] data = info.signature;
+        MCU device = devices.get(toHex(data[0]) + toHex(data[1]) + toHex(data[2]));
+        if (device != null) {
+          int flashSize = device.flashSize;
+          FlashImage image = getImage(info, device);
+          readImage(send, image, 0, flashSize, !exhaustiveRead);
+          boolean endOfCode = true;
+          StringBuilder buf = new StringBuilder();
+          for (int ii = 0; ii < flashSize; ii++) {
+            if (ii % 32 == 0) {
+              buf.append(toHex((byte) (ii >> 8))).append(toHex((byte) (ii & 0xFF))).append(": ");
+              endOfCode = true;
+            }
+            byte cc = image.get(ii);
+            if ((cc & 0xFF) != 0xFF) {
+              endOfCode = false;
+            }
+            buf.append(toHex(cc));
+            if (ii % 32 == 31) {
+              if (endOfCode) {
+                break;
               }
+              buf.append("\n");
+              appendText(buf.toString());
+            } else {
+              buf.append(" ");
             }
-            appendText("Checksum: 0x" + toHex(checksum) + " (" + checksum + ")\n");
-          } else {
-            appendText("Unknown device signature\n");
           }
-        } catch (UnableToComply ex) {
-          appendText(ex.message + "\n");
-        } catch (Exception ex) {
-          ex.printStackTrace();
-          appendText(ex.toString() + "\n");
-        } finally {
-          send.close();
-          actions.setEnabled(true);
+          appendText("SHA-256: " + toHex(image.getSha256()) + (image.isComplete() ? "" : " (skipped regions hashed as erased)") + "\n");
+        } else {
+          appendText("Unknown device signature\n");
         }
       });
-      doAction.start();
     });
-    actions.add(mItem = new JMenuItem("Read Bootloader"));
+    actions.add(mItem = new JMenuItem("Read EEPROM"));
     mItem.addActionListener(e -> {
-      appendText("Reading Bootloader\n");
-      Thread doAction = new Thread(() -> {
-        ArduinoBootDriver send = new ArduinoBootDriver(jPort);
-        try {
-          actions.setEnabled(false);
-          send.sync();
-            byte[] data = send.getSignature();
-            MCU device = devices.get(toHex(data[0]) + toHex(data[1]) + toHex(data[2]));
-            if (device != null) {
-              byte[] fuses = null;
-              try {
-                fuses = send.getFuses();
-              } catch (UnableToComply ex) {
-                appendText("Unable to read fuses to determine bootloader size\n");
-              }
-              int bootSize = device.getBootSize(fuses) * 2;
-              int maxBoot = device.getMaxBootSize();
-              appendText("Bootloader using " + bootSize + " bytes of " + maxBoot + "\n");
-              int addr = device.flashSize - bootSize;
-              data = send.readFlash(addr, bootSize);
-              int off = 0;
-              if (skipFF) {
-                if (fuses == null) {
-                  while (data[off] == (byte) 0xFF) {
-                    off++;
-                  }
-                }
-              }
-              if (off > 0) {
-                appendText("Found bootloader base by skipping 0xFF bytes\n");
-                off &= 0xFFF0;      // Align to multiple of 16 so printout looks pretty
-              }
-              StringBuilder ascii = new StringBuilder();
-              int checksum = 0;
-              for (int ii = off; ii < data.length; ii++) {
-                if (ii % 16 == 0) {
-                  if (addr >= 0x10000) {
-                    appendText(toHex24(addr + ii) + ": ");
-                  } else {
-                    appendText(toHex16(addr + ii) + ": ");
-                  }
-                }
-                appendText(toHex(data[ii]));
-                checksum += (int) data[ii] & 0xFF;
-                if (data[ii] >= 0x20 && data[ii] < 0x7F) {
-                  ascii.append((char) (0x20 + data[ii]));
-                } else {
-                  ascii.append(' ');
-                }
-                if (ii % 16 == 15) {
-                  appendText(" - ");
-                  appendText(ascii.toString());
-                  appendText("\n");
-                  ascii = new StringBuilder();
-                } else {
-                  appendText(" ");
-                }
-              }
-              appendText("Checksum: 0x" + toHex(checksum) + " (" + checksum + ")\n");
-            } else {
-            appendText("Unknown device signature\n");
+      appendText("Read EEPROM\n");
+      runAction(actions, send -> {
+        byte[] data = send.getSignature();
+        MCU device = devices.get(toHex(data[0]) + toHex(data[1]) + toHex(data[2]));
+        if (device != null) {
+          data = send.readEeprom(0, device.eepromSize);
+          StringBuilder buf = new StringBuilder();
+          for (int ii = 0; ii < data.length; ii++) {
+            if (ii % 32 == 0) {
+              buf.append(toHex((byte) (ii >> 8))).append(toHex((byte) (ii & 0xFF))).append(": ");
+            }
+            buf.append(toHex(data[ii]));
+            buf.append(ii % 32 == 31 ? "\n" : " ");
           }
-        } catch (UnableToComply ex) {
-          appendText(ex.message + "\n");
-        } catch (Exception ex) {
-          ex.printStackTrace();
-          appendText(ex.toString() + "\n");
-        } finally {
-          send.close();
-          actions.setEnabled(true);
+          appendText(buf.toString());
+        } else {
+          appendText("Unknown device signature\n");
         }
       });
-      doAction.start();
     });
-    actions.add(mItem = new JMenuItem("DisAsm Bootloader"));
+    actions.add(mItem = new JMenuItem("Read Bootloader"));
     mItem.addActionListener(e -> {
       appendText("Reading Bootloader\n");
-      Thread doAction = new Thread(() -> {
-        ArduinoBootDriver send = new ArduinoBootDriver(jPort);
-        try {
-          actions.setEnabled(false);
-          send.sync();
-          byte[] data = send.getSignature();
+      runAction(actions, send -> {
+          ArduinoBootDriver.DeviceInfo info = send.getDeviceInfo();
+          byte[] data = info.signature;
           MCU device = devices.get(toHex(data[0]) + toHex(data[1]) + toHex(data[2]));
-          byte[] fuses = null;
           if (device != null) {
-            try {
-              fuses = send.getFuses();
-            } catch (UnableToComply ex) {
+            byte[] fuses = info.fuses;
+            if (fuses == null) {
               appendText("Unable to read fuses to determine bootloader size\n");
             }
             int bootSize = device.getBootSize(fuses) * 2;
-            if (fuses != null) {
-              int maxBoot = device.getMaxBootSize();
-              appendText("Bootloader using " + bootSize + " bytes of " + maxBoot + "\n");
-            }
+            int maxBoot = device.getMaxBootSize();
+            appendText("Bootloader using " + bootSize + " bytes of " + maxBoot + "\n");
             int addr = device.flashSize - bootSize;
-            data = send.readFlash(addr, bootSize);
-            int off = 0;
-            if (skipFF) {
-              if (fuses == null) {
-                while (data[off] == (byte) 0xFF) {
-                  off++;
+            FlashImage image = getImage(info, device);
+            readImage(send, image, addr, bootSize, false);
+            int start = getBootStart(image, addr, fuses);
+            StringBuilder ascii = new StringBuilder();
+            for (int ii = start; ii < device.flashSize; ii++) {
+              if (ii % 16 == 0) {
+                if (addr >= 0x10000) {
+                  appendText(toHex24(ii) + ": ");
+                } else {
+                  appendText(toHex16(ii) + ": ");
                 }
               }
+              byte cc = image.get(ii);
+              appendText(toHex(cc));
+              if (cc >= 0x20 && cc < 0x7F) {
+                ascii.append((char) (0x20 + cc));
+              } else {
+                ascii.append(' ');
+              }
+              if (ii % 16 == 15) {
+                appendText(" - ");
+                appendText(ascii.toString());
+                appendText("\n");
+                ascii = new StringBuilder();
+              } else {
+                appendText(" ");
+              }
             }
-            if (off > 0) {
-              appendText("Found bootloader base by skipping 0xFF bytes\n");
-              off &= 0xFFF0;      // Align to multiple of 16 so printout looks pretty
-            }
-            int checksum = 0;
-            for (int ii =  off; ii < data.length; ii++) {
-              checksum += (int) data[ii] & 0xFF;
-            }
-            appendText("Checksum: 0x" + toHex(checksum) + " (" + checksum + ")\n");
-            AVRDisassembler disAsm = new AVRDisassembler();
-            disAsm.dAsm(data, off, addr + off, (data.length - off) / 2);
-            appendText(disAsm.getDisAsm());
+            appendText(formatPageCrcs(image, start, device.flashSize));
           } else {
-            appendText("Unknown device signature\n");
+          appendText("Unknown device signature\n");
+        }
+      });
+    });
+    actions.add(mItem = new JMenuItem("DisAsm Bootloader"));
+    mItem.addActionListener(e -> {
+      appendText("Reading Bootloader\n");
+      runAction(actions, send -> {
+        ArduinoBootDriver.DeviceInfo info = send.getDeviceInfo();
+        byte[] data = info.signature;
+        MCU device = devices.get(toHex(data[0]) + toHex(data[1]) + toHex(data[2]));
+        byte[] fuses = info.fuses;
+        if (device != null) {
+          if (fuses == null) {
+            appendText("Unable to read fuses to determine bootloader size\n");
           }
-        } catch (UnableToComply ex) {
-          appendText(ex.message + "\n");
-        } catch (Exception ex) {
-          ex.printStackTrace();
-          appendText(ex.toString() + "\n");
-        } finally {
-          send.close();
-          actions.setEnabled(true);
+          int bootSize = device.getBootSize(fuses) * 2;
+          if (fuses != null) {
+            int maxBoot = device.getMaxBootSize();
+            appendText("Bootloader using " + bootSize + " bytes of " + maxBoot + "\n");
+          }
+          int addr = device.flashSize - bootSize;
+          FlashImage image = getImage(info, device);
+          readImage(send, image, addr, bootSize, false);
+          int start = getBootStart(image, addr, fuses);
+          data = image.toArray(start, device.flashSize - start);
+          appendText(formatPageCrcs(image, start, device.flashSize));
+          AVRDisassembler disAsm = new AVRDisassembler();
+          if (followFlow) {
+            // The reset vector jumps to the start of the bootloader, which may also hold the interrupt vectors
+            // (Caterina moves them there for its USB interrupts)
+            int[] vectors = AVRDisassembler.getVectors(data, 0, start, device.vectors, device.getVectorSize());
+            int[] entries = Arrays.copyOf(vectors, vectors.length + 1);
+            entries[vectors.length] = start;
+            disAsm.dAsm(AVRDisassembler.analyze(data, 0, start, data.length / 2, entries));
+          } else {
+            disAsm.dAsm(data, 0, start, data.length / 2);
+          }
+          appendText(disAsm.getDisAsm());
+        } else {
+          appendText("Unknown device signature\n");
         }
       });
-      doAction.start();
+    });
+    actions.add(mItem = new JMenuItem("Verify Flash..."));
+    mItem.addActionListener(e -> {
+      IntelHex golden = chooseGolden();
+      if (golden != null) {
+        appendText("Verify Flash\n");
+        runAction(actions, send -> appendText(verify(send, golden) + "\n"));
+      }
+    });
+    actions.add(mItem = new JMenuItem("Write Flash..."));
+    mItem.addActionListener(e -> {
+      IntelHex hex = chooseGolden();
+      if (hex != null && JOptionPane.showConfirmDialog(this, "Overwrite the device's flash?", "Write Flash",
+                                                       JOptionPane.OK_CANCEL_OPTION) == JOptionPane.OK_OPTION) {
+        appendText("Write Flash\n");
+        runAction(actions, send -> appendText(writeImage(send, hex) + "\n"));
+      }
+    });
+    actions.addSeparator();
+    actions.add(mItem = new JMenuItem("Read Flash (All Ports)"));
+    mItem.addActionListener(e -> {
+      JFileChooser fc = new JFileChooser(prefs.get("dump.dir", null));
+      fc.setDialogTitle("Select Folder for Flash Dumps");
+      fc.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+      if (fc.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+        return;
+      }
+      File dir = fc.getSelectedFile();
+      prefs.put("dump.dir", dir.getAbsolutePath());
+      runAllPorts(actions, "Reading Flash", (port, send, result) -> {
+        byte[] data = send.getSignature();
+        MCU device = devices.get(toHex(data[0]) + toHex(data[1]) + toHex(data[2]));
+        if (device == null) {
+          throw new UnableToComply("Unknown device signature");
+        }
+        File file = new File(dir, port.replaceAll("[^A-Za-z0-9._-]", "_") + ".bin");
+        int flashSize = device.flashSize;
+        int bytes;
+        try (FileOutputStream out = new FileOutputStream(file)) {
+          // Write each block as it arrives so memory use doesn't grow with the number of ports
+          int[] next = new int[1];
+          ArduinoBootDriver.BlockHandler writer = (addr, buf, off, len) -> {
+            writeBlank(out, addr - next[0]);
+            out.write(buf, off, len);
+            next[0] = addr + len;
+            return true;
+          };
+          // Always read every page, as a sparse read can miss data in a page that starts out erased
+          bytes = send.readFlash(0, flashSize, writer);
+          writeBlank(out, flashSize - next[0]);
+        }
+        result.message = device.name + " saved to " + file.getName();
+        if (!send.getRetryRanges().isEmpty()) {
+          result.message += " (retried " + formatRanges(send.getRetryRanges()) + ")";
+        }
+        return bytes;
+      });
+    });
+    actions.add(mItem = new JMenuItem("Read EEPROM (All Ports)"));
+    mItem.addActionListener(e -> {
+      JFileChooser fc = new JFileChooser(prefs.get("dump.dir", null));
+      fc.setDialogTitle("Select Folder for EEPROM Dumps");
+      fc.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+      if (fc.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+        return;
+      }
+      File dir = fc.getSelectedFile();
+      prefs.put("dump.dir", dir.getAbsolutePath());
+      runAllPorts(actions, "Reading EEPROM", (port, send, result) -> {
+        // Lock bits and calibration byte are read in the same session as the EEPROM
+        ArduinoBootDriver.DeviceInfo info = send.getDeviceInfo();
+        byte[] data = info.signature;
+        MCU device = devices.get(toHex(data[0]) + toHex(data[1]) + toHex(data[2]));
+        if (device == null) {
+          throw new UnableToComply("Unknown device signature");
+        }
+        File file = new File(dir, port.replaceAll("[^A-Za-z0-9._-]", "_") + ".eep");
+        int bytes;
+        try (FileOutputStream out = new FileOutputStream(file)) {
+          bytes = send.readEeprom(0, device.eepromSize, (addr, buf, off, len) -> {
+            out.write(buf, off, len);
+            return true;
+          });
+        }
+        result.message = device.name + " saved to " + file.getName() +
+                         ", lock " + (info.lockBits >= 0 ? toHex((byte) info.lockBits) : "n/a") +
+                         ", OSCCAL " + (info.oscCal >= 0 ? toHex((byte) info.oscCal) : "n/a");
+        return bytes;
+      });
+    });
+    actions.add(mItem = new JMenuItem("Verify Flash (All Ports)..."));
+    mItem.addActionListener(e -> {
+      IntelHex golden = chooseGolden();
+      if (golden != null) {
+        runAllPorts(actions, "Verifying Flash", (port, send, result) -> {
+          FlashVerifier.Result verify = verify(send, golden);
+          if (!verify.passed) {
+            throw new UnableToComply(verify.toString());
+          }
+          result.message = verify.toString();
+          return verify.bytesRead;
+        });
+      }
     });
     actions.addSeparator();
     actions.add(mItem = new JMenuItem("Clear Screen"));
@@ -936,6 +563,67 @@ public class ArduinoReader extends JFrame {
     JMenu tpiSettings = new JMenu("Serial Port");
     settings.add(tpiSettings);
     tpiSettings.setEnabled(false);
+    JCheckBoxMenuItem sessionItem = new JCheckBoxMenuItem("Session Mode", sessionMode);
+    settings.add(sessionItem);
+    sessionItem.addActionListener(e -> {
+      prefs.putBoolean("session.mode", sessionMode = sessionItem.isSelected());
+      if (!sessionMode) {
+        endSession();
+      }
+    });
+    JCheckBoxMenuItem exhaustiveItem = new JCheckBoxMenuItem("Exhaustive Flash Reads", exhaustiveRead);
+    settings.add(exhaustiveItem);
+    exhaustiveItem.addActionListener(e -> prefs.putBoolean("read.exhaustive", exhaustiveRead = exhaustiveItem.isSelected()));
+    JMenu windowMenu = new JMenu("STK500V1 Read Window");
+    settings.add(windowMenu);
+    ButtonGroup windowGroup = new ButtonGroup();
+    for (int pairs : new int[] {1, 2, 4, 8}) {
+      JRadioButtonMenuItem windowItem = new JRadioButtonMenuItem(pairs + (pairs > 1 ? " Pages" : " Page"), pairs == readWindow);
+      windowMenu.add(windowItem);
+      windowGroup.add(windowItem);
+      windowItem.addActionListener(e -> {
+        prefs.putInt("read.window", readWindow = pairs);
+        endSession();         // So the next action uses a driver with the new window
+      });
+    }
+    JMenu batchMenu = new JMenu("STK500V2 Query Batch");
+    settings.add(batchMenu);
+    ButtonGroup batchGroup = new ButtonGroup();
+    for (int commands : new int[] {1, 2, 5, 10}) {
+      JRadioButtonMenuItem batchItem = new JRadioButtonMenuItem(commands + (commands > 1 ? " Commands" : " Command"), commands == queryBatch);
+      batchMenu.add(batchItem);
+      batchGroup.add(batchItem);
+      batchItem.addActionListener(e -> {
+        prefs.putInt("query.batch", queryBatch = commands);
+        endSession();         // So the next action uses a driver with the new batch size
+      });
+    }
+    JCheckBoxMenuItem usbOnlyItem = new JCheckBoxMenuItem("All Ports: USB Serial Only", usbPortsOnly);
+    settings.add(usbOnlyItem);
+    usbOnlyItem.addActionListener(e -> prefs.putBoolean("allports.usbOnly", usbPortsOnly = usbOnlyItem.isSelected()));
+    JMenu threadsMenu = new JMenu("All Ports: Ports at Once");
+    settings.add(threadsMenu);
+    ButtonGroup threadsGroup = new ButtonGroup();
+    for (int threads : new int[] {4, 8, 16, 48}) {
+      JRadioButtonMenuItem threadsItem = new JRadioButtonMenuItem(threads + " Ports", threads == portThreads);
+      threadsMenu.add(threadsItem);
+      threadsGroup.add(threadsItem);
+      threadsItem.addActionListener(e -> prefs.putInt("allports.threads", portThreads = threads));
+    }
+    JCheckBoxMenuItem stopVerifyItem = new JCheckBoxMenuItem("Stop Verify at First Mismatch", stopVerify);
+    settings.add(stopVerifyItem);
+    stopVerifyItem.addActionListener(e -> prefs.putBoolean("verify.stopFirst", stopVerify = stopVerifyItem.isSelected()));
+    JCheckBoxMenuItem verifyWriteItem = new JCheckBoxMenuItem("Verify After Write", verifyWrite);
+    settings.add(verifyWriteItem);
+    verifyWriteItem.addActionListener(e -> prefs.putBoolean("write.verify", verifyWrite = verifyWriteItem.isSelected()));
+    JCheckBoxMenuItem followFlowItem = new JCheckBoxMenuItem("DisAsm Follows Code Flow", followFlow);
+    settings.add(followFlowItem);
+    followFlowItem.addActionListener(e -> prefs.putBoolean("disasm.flow", followFlow = followFlowItem.isSelected()));
+    settings.add(mItem = new JMenuItem("Clear Protocol Cache"));
+    mItem.addActionListener(e -> {
+      protocolCache.clear();
+      appendText("Protocol cache cleared\n");
+    });
     Thread portThread = new Thread(() -> {
       // Add "Port" and "Baud" Menus to MenuBar
       try {
@@ -975,6 +663,268 @@ public class ArduinoReader extends JFrame {
     setVisible(true);
   }
 
+  private interface DriverAction {
+    void run (ArduinoBootDriver send) throws Exception;
+  }
+
+  /**
+   * Runs action in a new thread using the bootloader session, if "Session Mode" is enabled, or using a
+   * new driver that is synced before, and closed after the action
+   */
+  private void runAction (JMenu actions, DriverAction action) {
+    Thread doAction = new Thread(() -> {
+      ArduinoBootDriver send = null;
+      try {
+        actions.setEnabled(false);
+        if (sessionMode) {
+          synchronized (this) {
+            if (session == null) {
+              session = new BootSession(jPort, newDriver(), this::appendText);
+            }
+          }
+          session.run(drv -> {
+            // The session synced drv before running this, so remember its protocol as sync() does
+            lastProtocol = drv.getProtocol();
+            action.run(drv);
+            return null;
+          });
+        } else {
+          send = newDriver();
+          sync(send);
+          action.run(send);
+        }
+      } catch (UnableToComply ex) {
+        appendText(ex.message + "\n");
+      } catch (Exception ex) {
+        ex.printStackTrace();
+        appendText(ex.toString() + "\n");
+      } finally {
+        if (send != null) {
+          send.close();
+        }
+        actions.setEnabled(true);
+      }
+    });
+    doAction.start();
+  }
+
+  /**
+   * Runs job on every USB serial port (or every serial port, if "All Ports: USB Serial Only" is
+   * off), up to portThreads at once, in a new thread and shows the summary when all ports are done
+   * @param verb description of job used in the starting message, such as "Reading Flash"
+   */
+  private void runAllPorts (JMenu actions, String verb, MultiPortReader.PortJob job) {
+    endSession();
+    Thread doAction = new Thread(() -> {
+      try {
+        actions.setEnabled(false);
+        List<String> ports = Arrays.asList(usbPortsOnly ? jPort.getUsbPortNames() : jPort.getPortNames());
+        appendText(verb + " on " + ports.size() + " ports\n");
+        MultiPortReader reader = new MultiPortReader(port -> new JSSCPort(prefs, port), portThreads);
+        reader.setCache(protocolCache);
+        reader.setProgressListener((port, txt) -> appendText(port + ": " + txt + "\n"));
+        MultiPortReader.Summary summary = reader.run(ports, job);
+        appendText(summary + "\n");
+      } catch (Exception ex) {
+        ex.printStackTrace();
+        appendText(ex.toString() + "\n");
+      } finally {
+        actions.setEnabled(true);
+      }
+    });
+    doAction.start();
+  }
+
+  /**
+   * Ask for the golden image to verify against, either an Intel HEX file, or a binary dump (such as one
+   * saved by "Read Flash (All Ports)")
+   * @return image, or null if cancelled, or the file couldn't be read
+   */
+  private IntelHex chooseGolden () {
+    JFileChooser fc = new JFileChooser(prefs.get("golden.dir", null));
+    fc.setDialogTitle("Select Golden Image (.hex or .bin)");
+    if (fc.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+      return null;
+    }
+    File file = fc.getSelectedFile();
+    prefs.put("golden.dir", file.getParent());
+    try {
+      if (file.getName().toLowerCase().endsWith(".hex")) {
+        return IntelHex.read(file);
+      }
+      return IntelHex.fromBinary(Files.readAllBytes(file.toPath()), 0);
+    } catch (IOException ex) {
+      appendText("Unable to read " + file.getName() + ": " + ex.getMessage() + "\n");
+      return null;
+    }
+  }
+
+  /**
+   * Verify the device's flash against golden, reading only the ranges golden covers
+   */
+  private FlashVerifier.Result verify (ArduinoBootDriver send, IntelHex golden) throws Exception {
+    byte[] data = send.getSignature();
+    MCU device = devices.get(toHex(data[0]) + toHex(data[1]) + toHex(data[2]));
+    if (device == null) {
+      throw new UnableToComply("Unknown device signature");
+    }
+    if (golden.end > device.flashSize) {
+      throw new UnableToComply("Golden image is larger than the " + device.name + "'s flash");
+    }
+    FlashVerifier verifier = new FlashVerifier(golden);
+    verifier.setStopOnMismatch(stopVerify);
+    return verifier.verify(send);
+  }
+
+  /**
+   * Program hex into the device's flash, refusing images that would overwrite the bootloader.  If the fuses
+   * can't be read (as with Optiboot and ATmegaBOOT), the bootloader is found by reading the largest boot
+   * section and skipping erased flash, and its start is rounded down to a boot section boundary.
+   * @return summary of the write
+   */
+  private String writeImage (ArduinoBootDriver send, IntelHex hex) throws Exception {
+    ArduinoBootDriver.DeviceInfo info = send.getDeviceInfo();
+    byte[] data = info.signature;
+    MCU device = devices.get(toHex(data[0]) + toHex(data[1]) + toHex(data[2]));
+    if (device == null) {
+      throw new UnableToComply("Unknown device signature");
+    }
+    int bootStart;
+    if (info.fuses != null) {
+      bootStart = device.flashSize - device.getBootSize(info.fuses) * 2;
+    } else {
+      int addr = device.flashSize - device.getMaxBootSize();
+      FlashImage top = getImage(info, device);
+      readImage(send, top, addr, device.getMaxBootSize(), false);
+      int found = top.findProgrammed(addr, device.flashSize);
+      int section = device.base * 2;        // Smallest boot section, in bytes (every boot start is a multiple)
+      bootStart = found < device.flashSize ? found / section * section : addr;
+    }
+    if (hex.end > bootStart) {
+      throw new UnableToComply("Image overlaps the " + device.name + "'s bootloader at 0x" + Integer.toHexString(bootStart).toUpperCase());
+    }
+    synchronized (this) {
+      // Any flash read before the write is stale now
+      image = null;
+    }
+    long start = System.currentTimeMillis();
+    int bytes = send.writeFlash(hex, device.pageSize, verifyWrite);
+    return "Wrote " + bytes + " bytes" + (verifyWrite ? " and verified" : "") + " in " +
+           (System.currentTimeMillis() - start) + " ms";
+  }
+
+  private synchronized void endSession () {
+    if (session != null) {
+      session.close();
+      session = null;
+    }
+    image = null;
+  }
+
+  /**
+   * Get the FlashImage to read the device's flash into.  In session mode, the image from the last action
+   * is reused, so views of flash already read don't read it again (the session holds the port open, so
+   * another program can't change the flash in between).  Otherwise each action starts a new image.
+   */
+  private synchronized FlashImage getImage (ArduinoBootDriver.DeviceInfo info, MCU device) {
+    String port = jPort.getPortName();
+    if (!sessionMode || image == null || !Objects.equals(port, imagePort) || !Arrays.equals(image.signature, info.signature)) {
+      image = new FlashImage(0, device.flashSize, 256);
+      imagePort = port;
+    }
+    image.signature = info.signature;
+    image.fuses = info.fuses;
+    return image;
+  }
+
+  /**
+   * Read the parts of a range of flash that image doesn't already hold
+   * @param sparse true to skip erased flash (see ArduinoBootDriver.readFlashSparse())
+   */
+  private void readImage (ArduinoBootDriver send, FlashImage image, int addr, int length, boolean sparse) throws Exception {
+    List<int[]> retried = new ArrayList<>();
+    for (int[] range : image.getUnknownRanges(addr, length)) {
+      if (sparse) {
+        send.readFlashSparse(range[0], range[1] - range[0], blankPages, image);
+      } else {
+        send.readFlash(range[0], range[1] - range[0], image);
+      }
+      retried.addAll(send.getRetryRanges());
+    }
+    if (!retried.isEmpty()) {
+      appendText("Retried: " + formatRanges(retried) + "\n");
+    }
+  }
+
+  /**
+   * @return address at which to start showing the bootloader, which is found by skipping erased flash
+   * if the fuses that give its size couldn't be read
+   */
+  private int getBootStart (FlashImage image, int addr, byte[] fuses) {
+    if (skipFF && fuses == null) {
+      int start = image.findProgrammed(addr, image.getBase() + image.getSize());
+      if (start > addr) {
+        appendText("Found bootloader base by skipping 0xFF bytes\n");
+        return start & ~0x0F;     // Align to multiple of 16 so printout looks pretty
+      }
+    }
+    return addr;
+  }
+
+  private String formatRanges (List<int[]> ranges) {
+    StringBuilder buf = new StringBuilder();
+    for (int[] range : ranges) {
+      buf.append(buf.length() > 0 ? ", " : "").append("0x").append(toHex24(range[0]));
+      if (range[1] - 1 > range[0]) {
+        buf.append("-0x").append(toHex24(range[1] - 1));
+      }
+    }
+    return buf.toString();
+  }
+
+  /**
+   * Format the CRC32 of each page from addr to end, four pages per line
+   */
+  private String formatPageCrcs (FlashImage image, int addr, int end) {
+    long[] crcs = image.getPageCrcs();
+    int pageSize = image.getPageSize();
+    StringBuilder buf = new StringBuilder("Page CRC32:\n");
+    int count = 0;
+    for (int page = (addr - image.getBase()) / pageSize; page < crcs.length && image.getBase() + page * pageSize < end; page++) {
+      int pageAddr = image.getBase() + page * pageSize;
+      buf.append("  ").append(pageAddr >= 0x10000 ? toHex24(pageAddr) : toHex16(pageAddr)).append(": ");
+      buf.append(crcs[page] >= 0 ? String.format("%08X", crcs[page]) : "--------");
+      buf.append(++count % 4 == 0 ? "\n" : "");
+    }
+    return buf.append(count % 4 != 0 ? "\n" : "").toString();
+  }
+
+  /**
+   * Write count bytes of erased flash (0xFF) to fill a region skipped by a sparse read
+   */
+  private static void writeBlank (OutputStream out, int count) throws IOException {
+    byte[] blank = new byte[Math.min(Math.max(count, 0), 1024)];
+    Arrays.fill(blank, (byte) 0xFF);
+    while (count > 0) {
+      int len = Math.min(count, blank.length);
+      out.write(blank, 0, len);
+      count -= len;
+    }
+  }
+
+  private ArduinoBootDriver newDriver () {
+    ArduinoBootDriver send = new ArduinoBootDriver(jPort, lastProtocol, this::appendText);
+    send.setCache(protocolCache);
+    send.setPipelineDepth(readWindow);
+    send.setStkV2BatchSize(queryBatch);
+    return send;
+  }
+
+  private void sync (ArduinoBootDriver send) throws Exception {
+    send.sync();
+    lastProtocol = send.getProtocol();
+  }
+
   private String toHex16 (int val) {
     return toHex((byte) (val >> 8)) + toHex((byte) (val & 0xFF));
   }
@@ -998,6 +948,14 @@ public class ArduinoReader extends JFrame {
     return toHex((byte) (val >> 8)) + toHex((byte) (val & 0xFF));
   }
 
+  private static String toHex (byte[] data) {
+    StringBuilder buf = new StringBuilder();
+    for (byte cc : data) {
+      buf.append(toHex(cc));
+    }
+    return buf.toString();
+  }
+
   private static String toHex (byte data) {
     int val = data & 0xFF;
     return (val < 0x10 ? "0" : "") + Integer.toHexString(val).toUpperCase();
@@ -0,0 +1,131 @@
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ *  Keeps a bootloader engaged between actions so a series of actions only has to reset and sync the board
+ *  once.  While the session is engaged, a background thread pings the bootloader before its timeout expires.
+ *  If a ping fails, the session is marked as disengaged and the next action re-syncs.
+ *
+ *  Author: Wayne Holder, 2019
+ *  License: MIT (https://opensource.org/licenses/MIT)
+ */
+class BootSession {
+  private final SerialTransport            jPort;
+  private final ArduinoBootDriver          driver;
+  private final ArduinoBootDriver.Listener listener;
+  private final ReentrantLock              lock = new ReentrantLock();
+  private final ScheduledExecutorService   timer;
+  private ScheduledFuture<?>               pinger;
+  private volatile boolean                 engaged;
+  private String                           portName;
+
+  interface Action<T> {
+    T run (ArduinoBootDriver driver) throws Exception;
+  }
+
+  /**
+   * @param jPort transport the driver uses (used to detect a change of port)
+   * @param driver driver used for all actions in this session
+   * @param listener receives a message when the session is lost
+   */
+  BootSession (SerialTransport jPort, ArduinoBootDriver driver, ArduinoBootDriver.Listener listener) {
+    this.jPort = jPort;
+    this.driver = driver;
+    this.listener = listener;
+    timer = Executors.newSingleThreadScheduledExecutor(run -> {
+      Thread thread = new Thread(run, "BootSession");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  boolean isEngaged () {
+    return engaged;
+  }
+
+  /**
+   * Run an action using the session's driver, syncing first if the bootloader is not engaged
+   * @param action action to run
+   * @return value returned by action
+   */
+  <T> T run (Action<T> action) throws Exception {
+    lock.lock();
+    try {
+      if (!engaged || !Objects.equals(portName, jPort.getPortName())) {
+        stopKeepAlive();
+        engaged = false;
+        driver.sync();
+        portName = jPort.getPortName();
+        engaged = true;
+        int interval = driver.getKeepAliveInterval();
+        pinger = timer.scheduleWithFixedDelay(this::keepAlive, interval, interval, TimeUnit.MILLISECONDS);
+      }
+      try {
+        return action.run(driver);
+      } catch (Exception ex) {
+        // Check if the bootloader is still listening after the failure (a ping that throws means it's not)
+        boolean alive;
+        try {
+          alive = driver.ping();
+        } catch (Exception pingEx) {
+          ex.addSuppressed(pingEx);
+          alive = false;
+        }
+        if (!alive) {
+          disengage();
+        }
+        throw ex;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void keepAlive () {
+    // Skip if an action is running, as its commands also keep the bootloader engaged
+    if (lock.tryLock()) {
+      try {
+        if (engaged && !driver.ping()) {
+          disengage();
+        }
+      } catch (Exception ex) {
+        disengage();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  private void disengage () {
+    stopKeepAlive();
+    engaged = false;
+    driver.close();
+    listener.status("Bootloader session lost, will re-sync on next action\n");
+  }
+
+  private void stopKeepAlive () {
+    if (pinger != null) {
+      pinger.cancel(false);
+      pinger = null;
+    }
+  }
+
+  /**
+   * End session and close port
+   */
+  void close () {
+    lock.lock();
+    try {
+      stopKeepAlive();
+      engaged = false;
+      driver.close();
+    } finally {
+      lock.unlock();
+      timer.shutdownNow();
+    }
+  }
+}
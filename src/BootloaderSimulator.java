@@ -0,0 +1,765 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *  Simulates an Arduino Board connected to a serial port so ArduinoBootDriver can be tested and benchmarked
+ *  without hardware.  Implements the bootloader side of the Optiboot subset of STK500V1, the STK500V2
+ *  bootloader used on the MEGA boards and the Caterina (AVR109 subset) bootloader.  Replies are delivered
+ *  on a separate thread, as JSSC does, and are paced to model the time each byte takes to send at the
+ *  selected baud rate, plus a fixed reply latency for the bootloader to process each command.
+ *
+ *  The simulated board also models the behaviors ArduinoBootDriver has to cope with on real boards:
+ *    Asserting DTR (or opening the port) resets the board into the bootloader (STK500V1 and STK500V2)
+ *    touch1200() starts the bootloader on Caterina boards
+ *    The bootloader exits to the application if no command is received within its watchdog timeout
+ *    Optiboot exits to the application if a command is not followed by CRC_EOP (0x20)
+ *    Nothing is received if the port's baud rate does not match the bootloader's baud rate, and the STK500V1
+ *    bootloader exits after more than setErrorLimit() bytes with framing errors (0 for Optiboot)
+ *    Replies can optionally be lost at random, as on a flaky USB hub, or cable
+ *
+ *  Author: Wayne Holder, 2019
+ *  License: MIT (https://opensource.org/licenses/MIT)
+ */
+class BootloaderSimulator implements SerialTransport {
+  private static final long           USB_BYTE_NANOS = 1000000 / 64;   // Full speed CDC, 64 byte packet per frame
+  private final ArduinoBootDriver.Protocol  protocol;
+  private final byte[]      flash, eeprom, signature;
+  private byte[]            fuses = {(byte) 0xFF, (byte) 0xDE, (byte) 0xFD};   // Low, High, Extended
+  private byte              lock = (byte) 0xCF, osccal = (byte) 0x9A;
+  private int               bootBaud = 115200, portBaud = 115200, baudRate = 115200;
+  private long              latency = TimeUnit.MICROSECONDS.toNanos(50);
+  private long              programTime = TimeUnit.MICROSECONDS.toNanos(8000), programming;
+  private long              watchdog;
+  private int               chunkSize = 64, replyLoss, errorLimit, errors;
+  private final Random      random = new Random(1);
+  private boolean           timing = true;
+  private RXEvent           handler;
+  private boolean           opened, active;
+  private long              lastCmd, hostFree, boardFree, busyUntil;
+  private int               busyBytes;
+  private byte[]            cmd = new byte[1024];
+  private int               cmdLen, address, epoch;
+  private final ArrayDeque<Reply> replies = new ArrayDeque<>();
+  private Thread            deliver;
+
+  private static class Reply {
+    byte[]  data;
+    long    start, byteTime;
+    int     epoch;
+
+    Reply (byte[] data, long start, long byteTime, int epoch) {
+      this.data = data;
+      this.start = start;
+      this.byteTime = byteTime;
+      this.epoch = epoch;
+    }
+  }
+
+  /**
+   * @param protocol bootloader protocol to emulate
+   * @param signature device signature (high, middle, low)
+   * @param flashSize size of flash memory in bytes
+   * @param eepromSize size of EEPROM in bytes
+   */
+  BootloaderSimulator (ArduinoBootDriver.Protocol protocol, byte[] signature, int flashSize, int eepromSize) {
+    this.protocol = protocol;
+    this.signature = signature.clone();
+    flash = new byte[flashSize];
+    eeprom = new byte[eepromSize];
+    Arrays.fill(flash, (byte) 0xFF);
+    Arrays.fill(eeprom, (byte) 0xFF);
+    watchdog = TimeUnit.MILLISECONDS.toNanos(protocol == ArduinoBootDriver.Protocol.CATERINA ? 8000 : 1000);
+  }
+
+  /**
+   * Load flash memory with the contents of an Intel HEX file
+   */
+  void loadFlash (IntelHex hex) {
+    System.arraycopy(hex.data, 0, flash, hex.base, Math.min(hex.data.length, flash.length - hex.base));
+  }
+
+  byte[] getFlash () {
+    return flash;
+  }
+
+  byte[] getEeprom () {
+    return eeprom;
+  }
+
+  void setFuses (byte low, byte high, byte ext) {
+    fuses = new byte[] {low, high, ext};
+  }
+
+  void setLockBits (byte lock) {
+    this.lock = lock;
+  }
+
+  void setOscCal (byte osccal) {
+    this.osccal = osccal;
+  }
+
+  /**
+   * Set the baud rate the bootloader uses (ignored for Caterina, which uses native USB)
+   */
+  void setBootloaderBaud (int baud) {
+    bootBaud = baud;
+  }
+
+  /**
+   * Set the number of bytes received with framing errors (such as when the host uses the wrong baud rate)
+   * the STK500V1 bootloader ignores before it exits to the application.  Optiboot exits on the first one
+   * (the default), but older bootloaders, such as the ATmegaBOOT used on the Diecimila, allow a few.
+   */
+  void setErrorLimit (int errorLimit) {
+    this.errorLimit = errorLimit;
+  }
+
+  /**
+   * Set time the bootloader takes to start replying after the last byte of a command is received
+   */
+  void setLatency (long micros) {
+    latency = TimeUnit.MICROSECONDS.toNanos(micros);
+  }
+
+  /**
+   * Set time the bootloader takes to erase and program a flash page before it replies to a page write
+   * (the default of 8 ms is a little under the maximum for an ATmega328P's erase plus write)
+   */
+  void setProgramTime (long micros) {
+    programTime = TimeUnit.MICROSECONDS.toNanos(micros);
+  }
+
+  /**
+   * Set time after which the bootloader exits to the application if it does not receive a command
+   * @param millis timeout in milliseconds, or 0 for no timeout
+   */
+  void setWatchdog (int millis) {
+    watchdog = TimeUnit.MILLISECONDS.toNanos(millis);
+  }
+
+  /**
+   * Set the maximum number of bytes passed to RXEvent.rxBytes() in one call
+   */
+  void setChunkSize (int chunkSize) {
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * Lose replies at random to test recovery from errors
+   * @param oneIn average number of replies sent per reply lost, or 0 to never lose a reply
+   */
+  void setReplyLoss (int oneIn) {
+    replyLoss = oneIn;
+  }
+
+  /**
+   * Enable, or disable modeling of baud rate and reply latency (when disabled replies are delivered immediately)
+   */
+  void setTiming (boolean timing) {
+    this.timing = timing;
+  }
+
+  /*
+   *  Implement SerialTransport
+   */
+
+  public String getPortName () {
+    return "simulator";
+  }
+
+  public String getFingerprint () {
+    return "simulator:" + protocol + ":" + String.format("%02X%02X%02X", signature[0], signature[1], signature[2]);
+  }
+
+  public boolean open (RXEvent handler) {
+    return open(handler, baudRate);
+  }
+
+  public boolean open (RXEvent handler, int baudRate) {
+    close();
+    synchronized (this) {
+      this.handler = handler;
+      portBaud = baudRate;
+      opened = true;
+      if (protocol != ArduinoBootDriver.Protocol.CATERINA) {
+        reset();                // Opening the port asserts DTR, which resets the board
+      }
+      deliver = new Thread(this::deliverReplies, "BootloaderSimulator");
+      deliver.setDaemon(true);
+      deliver.start();
+    }
+    return true;
+  }
+
+  public void close () {
+    Thread thread;
+    synchronized (this) {
+      opened = false;
+      handler = null;
+      replies.clear();
+      epoch++;
+      thread = deliver;
+      deliver = null;
+      notifyAll();
+    }
+    if (thread != null) {
+      try {
+        thread.join();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  public boolean touch1200 () {
+    close();
+    synchronized (this) {
+      if (protocol == ArduinoBootDriver.Protocol.CATERINA) {
+        active = true;
+        lastCmd = System.nanoTime();
+        cmdLen = 0;
+      } else {
+        reset();
+      }
+    }
+    return true;
+  }
+
+  public int getBaudRate () {
+    return baudRate;
+  }
+
+  public void setBaudRate (int baudRate) {
+    this.baudRate = baudRate;
+  }
+
+  public synchronized boolean changeBaudRate (int baudRate) {
+    portBaud = baudRate;
+    return opened;
+  }
+
+  public synchronized void setDTR (boolean state) {
+    if (!state && opened && protocol != ArduinoBootDriver.Protocol.CATERINA) {
+      reset();
+    }
+  }
+
+  public void sendBytes (byte[] data) {
+    sendBytes(data, 0, data.length);
+  }
+
+  public synchronized void sendBytes (byte[] data, int off, int len) {
+    if (!opened) {
+      throw new IllegalStateException("port not open");
+    }
+    long byteTime = getByteTime();
+    long now = System.nanoTime();
+    hostFree = Math.max(hostFree, now);
+    boolean garbled = protocol != ArduinoBootDriver.Protocol.CATERINA && portBaud != bootBaud;
+    for (int ii = off; ii < off + len; ii++) {
+      byte cc = data[ii];
+      hostFree += byteTime;
+      if (garbled) {
+        // Bootloader sees framing errors, which Optiboot treats as a bad command and exits
+        if (protocol == ArduinoBootDriver.Protocol.STKV1 && active && ++errors > errorLimit) {
+          active = false;
+        }
+      } else if (active) {
+        if (watchdog > 0 && hostFree - lastCmd > watchdog) {
+          active = false;
+          continue;
+        }
+        if (protocol == ArduinoBootDriver.Protocol.STKV1) {
+          // Optiboot doesn't read the UART while sending a reply, so only 3 bytes (2 byte receive FIFO
+          // plus the shift register) can arrive before the receiver overruns and the command is garbled
+          busyBytes = hostFree < busyUntil ? busyBytes + 1 : 0;
+          if (busyBytes > 3) {
+            active = false;
+            continue;
+          }
+        }
+        if (cmdLen == cmd.length) {
+          cmd = Arrays.copyOf(cmd, cmd.length * 2);
+        }
+        cmd[cmdLen++] = cc;
+        byte[] rsp = null;
+        switch (protocol) {
+          case STKV1:
+            rsp = stkV1Command();
+            break;
+          case STKV2:
+            rsp = stkV2Command();
+            break;
+          case CATERINA:
+            rsp = caterinaCommand();
+            break;
+        }
+        if (rsp != null) {
+          lastCmd = hostFree;
+          long delay = timing ? latency + programming : 0;
+          programming = 0;
+          if (replyLoss > 0 && random.nextInt(replyLoss) == 0) {
+            continue;
+          }
+          long start = Math.max(hostFree + delay, boardFree);
+          boardFree = start + rsp.length * byteTime;
+          // Board is busy until all but the last 2 bytes (which fit in the transmit buffer) are sent
+          busyUntil = start + Math.max(0, rsp.length - 2) * byteTime;
+          replies.add(new Reply(rsp, start, byteTime, epoch));
+          notifyAll();
+        }
+      }
+    }
+  }
+
+  private long getByteTime () {
+    if (!timing) {
+      return 0;
+    }
+    if (protocol == ArduinoBootDriver.Protocol.CATERINA) {
+      return USB_BYTE_NANOS;
+    }
+    return 10000000000L / portBaud;     // Start bit, 8 data bits and a stop bit
+  }
+
+  private void reset () {
+    active = true;
+    errors = 0;
+    cmdLen = 0;
+    address = 0;
+    replies.clear();
+    epoch++;
+    lastCmd = hostFree = boardFree = System.nanoTime();
+  }
+
+  // Runs in the "BootloaderSimulator" thread to pace delivery of replies to the RXEvent handler
+  private void deliverReplies () {
+    while (true) {
+      Reply reply;
+      RXEvent rxEvent;
+      synchronized (this) {
+        while (opened && replies.isEmpty()) {
+          try {
+            wait();
+          } catch (InterruptedException ex) {
+            return;
+          }
+        }
+        if (!opened) {
+          return;
+        }
+        reply = replies.poll();
+        rxEvent = handler;
+      }
+      int off = 0;
+      while (off < reply.data.length) {
+        int count = Math.min(chunkSize, reply.data.length - off);
+        long due = reply.start + (off + count) * reply.byteTime;
+        long wait;
+        while ((wait = due - System.nanoTime()) > 0) {
+          LockSupport.parkNanos(wait);
+        }
+        synchronized (this) {
+          if (!opened || reply.epoch != epoch) {
+            break;
+          }
+        }
+        rxEvent.rxBytes(reply.data, off, count);
+        off += count;
+      }
+    }
+  }
+
+  /*
+   *  Optiboot subset of STK500V1 (see notes in ArduinoReader)
+   */
+
+  private byte[] stkV1Command () {
+    int need;
+    switch (cmd[0]) {
+      case 0x41: need = 3; break;                                   // STK_GET_PARAMETER
+      case 0x42: need = 22; break;                                  // STK_SET_DEVICE
+      case 0x45: need = 7; break;                                   // STK_SET_DEVICE_EXT
+      case 0x55: need = 4; break;                                   // STK_LOAD_ADDRESS
+      case 0x56: need = 6; break;                                   // STK_UNIVERSAL
+      case 0x74: need = 5; break;                                   // STK_READ_PAGE
+      case 0x64:                                                    // STK_PROG_PAGE
+        need = cmdLen >= 3 ? 5 + (((cmd[1] & 0xFF) << 8) + (cmd[2] & 0xFF)) : Integer.MAX_VALUE;
+        break;
+      default:   need = 2; break;
+    }
+    if (cmdLen < need) {
+      return null;
+    }
+    cmdLen = 0;
+    if (cmd[need - 1] != 0x20) {
+      // verifySpace() fails, so Optiboot lets the watchdog reset the chip and starts the application
+      active = false;
+      return null;
+    }
+    switch (cmd[0]) {
+      case 0x41:
+        int parm = cmd[1] & 0xFF;
+        return stkV1Reply(parm == 0x81 ? 8 : parm == 0x82 ? 0 : 3);
+      case 0x55:
+        address = (((cmd[2] & 0xFF) << 8) + (cmd[1] & 0xFF)) * 2;
+        return stkV1Reply();
+      case 0x56:
+        return stkV1Reply(0);
+      case 0x64: {
+        int size = ((cmd[1] & 0xFF) << 8) + (cmd[2] & 0xFF);
+        byte[] mem = cmd[3] == 'E' ? eeprom : flash;
+        System.arraycopy(cmd, 4, mem, address, Math.min(size, mem.length - address));
+        programming = mem == flash ? programTime : 0;
+        return stkV1Reply();
+      }
+      case 0x74: {
+        int size = ((cmd[1] & 0xFF) << 8) + (cmd[2] & 0xFF);
+        byte[] mem = cmd[3] == 'E' ? eeprom : flash;
+        byte[] rsp = new byte[size + 2];
+        rsp[0] = 0x14;
+        System.arraycopy(mem, address, rsp, 1, Math.min(size, mem.length - address));
+        rsp[size + 1] = 0x10;
+        return rsp;
+      }
+      case 0x75:
+        return stkV1Reply(signature[0], signature[1], signature[2]);
+      default:
+        // Optiboot replies STK_INSYNC, STK_OK to anything it doesn't implement
+        return stkV1Reply();
+    }
+  }
+
+  private static byte[] stkV1Reply (int... data) {
+    byte[] rsp = new byte[data.length + 2];
+    rsp[0] = 0x14;
+    for (int ii = 0; ii < data.length; ii++) {
+      rsp[ii + 1] = (byte) data[ii];
+    }
+    rsp[data.length + 1] = 0x10;
+    return rsp;
+  }
+
+  /*
+   *  STK500V2 bootloader used on the Arduino MEGA boards
+   */
+
+  private byte[] stkV2Command () {
+    if (cmd[0] != 0x1B) {
+      cmdLen = 0;
+      return null;
+    }
+    if (cmdLen < 5) {
+      return null;
+    }
+    int size = ((cmd[2] & 0xFF) << 8) + (cmd[3] & 0xFF);
+    if (cmdLen < size + 6) {
+      return null;
+    }
+    cmdLen = 0;
+    byte chk = 0;
+    for (int ii = 0; ii < size + 6; ii++) {
+      chk ^= cmd[ii];
+    }
+    if (cmd[4] != 0x0E || chk != 0) {
+      return null;
+    }
+    byte seq = cmd[1];
+    byte[] body = Arrays.copyOfRange(cmd, 5, 5 + size);
+    byte[] rsp;
+    switch (body[0]) {
+      case 0x01:                                                    // CMD_SIGN_ON
+        rsp = new byte[] {0x01, 0x00, 0x08, 'A', 'V', 'R', 'I', 'S', 'P', '_', '2'};
+        break;
+      case 0x03:                                                    // CMD_GET_PARAMETER
+        int parm = body[1] & 0xFF;
+        rsp = new byte[] {0x03, 0x00, (byte) (parm == 0x90 ? 0x0F : parm == 0x91 ? 2 : parm == 0x92 ? 10 : 0)};
+        break;
+      case 0x06:                                                    // CMD_LOAD_ADDRESS
+        address = (((body[1] & 0x7F) << 24) + ((body[2] & 0xFF) << 16) + ((body[3] & 0xFF) << 8) + (body[4] & 0xFF));
+        rsp = new byte[] {0x06, 0x00};
+        break;
+      case 0x10:                                                    // CMD_ENTER_PROGMODE_ISP
+      case 0x11:                                                    // CMD_LEAVE_PROGMODE_ISP
+      case 0x12:                                                    // CMD_CHIP_ERASE_ISP
+        rsp = new byte[] {body[0], 0x00};
+        break;
+      case 0x13:                                                    // CMD_PROGRAM_FLASH_ISP
+      case 0x15: {                                                  // CMD_PROGRAM_EEPROM_ISP
+        int count = ((body[1] & 0xFF) << 8) + (body[2] & 0xFF);
+        boolean isFlash = body[0] == 0x13;
+        byte[] mem = isFlash ? flash : eeprom;
+        int addr = isFlash ? address * 2 : address;
+        System.arraycopy(body, 10, mem, addr, Math.min(count, mem.length - addr));
+        address += isFlash ? count / 2 : count;
+        programming = isFlash ? programTime : 0;
+        rsp = new byte[] {body[0], 0x00};
+        break;
+      }
+      case 0x14:                                                    // CMD_READ_FLASH_ISP
+      case 0x16: {                                                  // CMD_READ_EEPROM_ISP
+        int count = ((body[1] & 0xFF) << 8) + (body[2] & 0xFF);
+        if (count > 256) {
+          // Bootloader's message buffer only holds 285 bytes
+          rsp = new byte[] {body[0], (byte) 0xC0};
+          break;
+        }
+        boolean isFlash = body[0] == 0x14;
+        byte[] mem = isFlash ? flash : eeprom;
+        int addr = isFlash ? address * 2 : address;
+        rsp = new byte[count + 3];
+        rsp[0] = body[0];
+        System.arraycopy(mem, addr, rsp, 2, Math.min(count, mem.length - addr));
+        address += isFlash ? count / 2 : count;
+        break;
+      }
+      case 0x18:                                                    // CMD_READ_FUSE_ISP
+        byte fuse = body[2] == 0x50 ? (body[3] == 0x08 ? fuses[2] : fuses[0]) : fuses[1];
+        rsp = new byte[] {0x18, 0x00, fuse, 0x00};
+        break;
+      case 0x1A:                                                    // CMD_READ_LOCK_ISP
+        rsp = new byte[] {0x1A, 0x00, lock, 0x00};
+        break;
+      case 0x1B:                                                    // CMD_READ_SIGNATURE_ISP
+        rsp = new byte[] {0x1B, 0x00, signature[body[4] & 0x03], 0x00};
+        break;
+      case 0x1C:                                                    // CMD_READ_OSCCAL_ISP
+        rsp = new byte[] {0x1C, 0x00, osccal, 0x00};
+        break;
+      default:
+        rsp = new byte[] {body[0], (byte) 0xC9};                    // STATUS_CMD_UNKNOWN
+        break;
+    }
+    byte[] msg = new byte[rsp.length + 6];
+    msg[0] = 0x1B;
+    msg[1] = seq;
+    msg[2] = (byte) (rsp.length >> 8);
+    msg[3] = (byte) rsp.length;
+    msg[4] = 0x0E;
+    System.arraycopy(rsp, 0, msg, 5, rsp.length);
+    chk = 0;
+    for (int ii = 0; ii < msg.length - 1; ii++) {
+      chk ^= msg[ii];
+    }
+    msg[msg.length - 1] = chk;
+    return msg;
+  }
+
+  /*
+   *  Caterina (AVR109 subset) used by ATmega32U4-based boards
+   */
+
+  private byte[] caterinaCommand () {
+    int need;
+    switch (cmd[0]) {
+      case 'A': need = 3; break;
+      case 'g': need = 4; break;
+      case 'B':
+        need = cmdLen >= 3 ? 4 + (((cmd[1] & 0xFF) << 8) + (cmd[2] & 0xFF)) : Integer.MAX_VALUE;
+        break;
+      case 'T':
+      case 'l':
+      case 'c':
+      case 'C':
+      case 'D': need = 2; break;
+      default:  need = 1; break;
+    }
+    if (cmdLen < need) {
+      return null;
+    }
+    cmdLen = 0;
+    switch (cmd[0]) {
+      case 'A':
+        address = ((cmd[1] & 0xFF) << 8) + (cmd[2] & 0xFF);
+        return new byte[] {0x0D};
+      case 'g': {
+        int count = ((cmd[1] & 0xFF) << 8) + (cmd[2] & 0xFF);
+        boolean isFlash = cmd[3] == 'F';
+        byte[] mem = isFlash ? flash : eeprom;
+        int addr = isFlash ? address * 2 : address;
+        byte[] rsp = new byte[count];
+        System.arraycopy(mem, addr, rsp, 0, Math.max(0, Math.min(count, mem.length - addr)));
+        address += isFlash ? count / 2 : count;
+        return rsp;
+      }
+      case 'B': {
+        int count = ((cmd[1] & 0xFF) << 8) + (cmd[2] & 0xFF);
+        boolean isFlash = cmd[3] == 'F';
+        byte[] mem = isFlash ? flash : eeprom;
+        int addr = isFlash ? address * 2 : address;
+        System.arraycopy(cmd, 4, mem, addr, Math.max(0, Math.min(count, mem.length - addr)));
+        address += isFlash ? count / 2 : count;
+        programming = isFlash ? programTime : 0;
+        return new byte[] {0x0D};
+      }
+      case 'S': return "CATERIN".getBytes(StandardCharsets.US_ASCII);
+      case 'V': return new byte[] {'1', '0'};
+      case 'p': return new byte[] {'S'};
+      case 'a': return new byte[] {'Y'};
+      case 't': return new byte[] {0x44, 0x00};
+      case 'b': return new byte[] {'Y', 0x00, (byte) 0x80};
+      case 's': return new byte[] {signature[2], signature[1], signature[0]};
+      case 'F': return new byte[] {fuses[0]};
+      case 'N': return new byte[] {fuses[1]};
+      case 'Q': return new byte[] {fuses[2]};
+      case 'r': return new byte[] {lock};
+      case 'E':
+        active = false;
+        return new byte[] {0x0D};
+      case 'T':
+      case 'P':
+      case 'L':
+      case 'e':
+      case 'l':
+      case 'c':
+      case 'C':
+      case 'm':
+      case 'D':
+        return new byte[] {0x0D};
+      default:
+        return new byte[] {'?'};
+    }
+  }
+
+  /*
+   *  Benchmark ArduinoBootDriver against simulated boards for each protocol
+   */
+
+  public static void main (String[] args) throws Exception {
+    IntelHex hex = IntelHex.read(BootloaderSimulator.class.getResourceAsStream("optiboot_atmega328.hex"));
+    Object[][] boards = {
+      {ArduinoBootDriver.Protocol.STKV1,    new byte[] {0x1E, (byte) 0x95, 0x0F}, 0x08000, 1024, 128},
+      {ArduinoBootDriver.Protocol.CATERINA, new byte[] {0x1E, (byte) 0x95, (byte) 0x87}, 0x08000, 1024, 128},
+      {ArduinoBootDriver.Protocol.STKV2,    new byte[] {0x1E, (byte) 0x98, 0x01}, 0x40000, 4096, 256},
+    };
+    // 8K sketch with an erased gap, which writeFlash() should skip
+    byte[] sketch = new byte[0x2000];
+    new Random(2).nextBytes(sketch);
+    Arrays.fill(sketch, 0x0C00, 0x1000, (byte) 0xFF);
+    IntelHex sketchHex = IntelHex.fromBinary(sketch, 0);
+    for (Object[] board : boards) {
+      ArduinoBootDriver.Protocol protocol = (ArduinoBootDriver.Protocol) board[0];
+      int flashSize = (Integer) board[2];
+      BootloaderSimulator sim = new BootloaderSimulator(protocol, (byte[]) board[1], flashSize, (Integer) board[3]);
+      sim.loadFlash(hex);
+      ArduinoBootDriver driver = new ArduinoBootDriver(sim, protocol, txt -> { });
+      System.out.println(protocol + ":");
+      try {
+        long start = System.nanoTime();
+        driver.sync();
+        System.out.println(benchResult("  sync()", start, 0));
+        start = System.nanoTime();
+        byte[] data = driver.readFlash(0, flashSize);
+        if (Arrays.equals(data, sim.getFlash())) {
+          System.out.println(benchResult("  readFlash()", start, flashSize));
+        } else {
+          System.out.println(benchResult("  readFlash() - data mismatch", start, 0));
+        }
+        start = System.nanoTime();
+        data = driver.readFlashSparse(0, flashSize, 16);
+        if (Arrays.equals(data, sim.getFlash())) {
+          System.out.println(benchResult("  readFlashSparse()", start, flashSize));
+        } else {
+          System.out.println(benchResult("  readFlashSparse() - data mismatch", start, 0));
+        }
+        sim.setReplyLoss(100);
+        start = System.nanoTime();
+        try {
+          data = driver.readFlash(0, flashSize);
+          String retries = "";
+          for (int[] range : driver.getRetryRanges()) {
+            retries += String.format(" %X-%X", range[0], range[1] - 1);
+          }
+          String name = "  readFlash() with lost replies" + (Arrays.equals(data, sim.getFlash()) ? "" : " - data mismatch");
+          System.out.println(benchResult(name, start, flashSize) + ", retried" + retries);
+        } catch (UnableToComply ex) {
+          System.out.println(benchResult("  readFlash() with lost replies - " + ex.message, start, 0));
+        }
+        sim.setReplyLoss(0);
+        start = System.nanoTime();
+        try {
+          driver.getFuses();
+          System.out.println(benchResult("  getFuses()", start, 0));
+        } catch (UnableToComply ex) {
+          System.out.println(benchResult("  getFuses() - " + ex.message, start, 0));
+        }
+        start = System.nanoTime();
+        ArduinoBootDriver.DeviceInfo info = driver.getDeviceInfo();
+        boolean match = Arrays.equals(info.signature, (byte[]) board[1]) && (info.fuses == null || Arrays.equals(info.fuses, sim.fuses));
+        System.out.println(benchResult("  getDeviceInfo()" + (match ? "" : " - data mismatch"), start, 0) +
+                           ", fuses " + (info.fuses != null ? "read" : "n/a") + ", lock " + (info.lockBits >= 0 ? "read" : "n/a") +
+                           ", osccal " + (info.oscCal >= 0 ? "read" : "n/a") + ", version " + info.version);
+        new Random(3).nextBytes(sim.getEeprom());
+        start = System.nanoTime();
+        data = driver.readEeprom(0, sim.getEeprom().length);
+        String name = "  readEeprom()" + (Arrays.equals(data, sim.getEeprom()) ? "" : " - data mismatch");
+        System.out.println(benchResult(name, start, data.length));
+        start = System.nanoTime();
+        FlashVerifier.Result verify = new FlashVerifier(hex).verify(driver);
+        System.out.println(benchResult("  verify()" + (verify.passed ? "" : " - " + verify), start, verify.bytesRead));
+        sim.getFlash()[hex.base + 0x40] ^= 0x01;
+        start = System.nanoTime();
+        verify = new FlashVerifier(hex).verify(driver);
+        System.out.println(benchResult("  verify() with bad byte" + (verify.passed ? " - PASS" : ""), start, verify.bytesRead));
+        sim.getFlash()[hex.base + 0x40] ^= 0x01;
+        int pageSize = (Integer) board[4];
+        start = System.nanoTime();
+        int written = driver.writeFlash(sketchHex, pageSize, false);
+        match = Arrays.equals(Arrays.copyOf(sim.getFlash(), sketch.length), sketch);
+        System.out.println(benchResult("  writeFlash()" + (match ? "" : " - data mismatch"), start, written));
+        Arrays.fill(sim.getFlash(), 0, sketch.length, (byte) 0xFF);
+        start = System.nanoTime();
+        written = driver.writeFlash(sketchHex, pageSize, true);
+        match = Arrays.equals(Arrays.copyOf(sim.getFlash(), sketch.length), sketch);
+        System.out.println(benchResult("  writeFlash() with verify" + (match ? "" : " - data mismatch"), start, written));
+        Arrays.fill(sim.getFlash(), 0, sketch.length, (byte) 0xFF);
+        sim.setReplyLoss(50);
+        start = System.nanoTime();
+        try {
+          written = driver.writeFlash(sketchHex, pageSize, true);
+          match = Arrays.equals(Arrays.copyOf(sim.getFlash(), sketch.length), sketch);
+          System.out.println(benchResult("  writeFlash() with lost replies" + (match ? "" : " - data mismatch"), start, written));
+        } catch (UnableToComply ex) {
+          System.out.println(benchResult("  writeFlash() with lost replies - " + ex.message, start, 0));
+        }
+        sim.setReplyLoss(0);
+      } catch (UnableToComply ex) {
+        System.out.println("  " + ex.message);
+      } finally {
+        driver.close();
+      }
+    }
+    benchDiecimila();
+  }
+
+  private static void benchDiecimila () throws Exception {
+    // ATmega168 with the 19200 baud ATmegaBOOT, which ignores a few framing errors from a wrong rate
+    BootloaderSimulator sim = new BootloaderSimulator(ArduinoBootDriver.Protocol.STKV1, new byte[] {0x1E, (byte) 0x94, 0x06}, 0x4000, 512);
+    sim.setBootloaderBaud(19200);
+    sim.setErrorLimit(5);
+    ArduinoBootDriver driver = new ArduinoBootDriver(sim, null, txt -> { });
+    System.out.println("STKV1 (19200 baud Diecimila):");
+    try {
+      long start = System.nanoTime();
+      driver.sync();
+      System.out.println(benchResult("  sync()", start, 0));
+    } catch (UnableToComply ex) {
+      System.out.println("  " + ex.message);
+    } finally {
+      driver.close();
+    }
+  }
+
+  private static String benchResult (String name, long start, int bytes) {
+    double secs = (System.nanoTime() - start) / 1e9;
+    String msg = String.format("%-40s %8.1f ms", name, secs * 1000);
+    if (bytes > 0) {
+      msg += String.format(", %d bytes, %.0f bytes/sec", bytes, bytes / secs);
+    }
+    return msg;
+  }
+}
@@ -0,0 +1,142 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *  Lock-free, single producer/single consumer ring buffer for bytes received by JSSCPort
+ *  when no RXEvent handler is registered.  The producer (JSSC's event thread) never blocks,
+ *  so bytes that arrive while the buffer is full are dropped and counted, rather than lost
+ *  silently.  The consumer can block, with an optional timeout, until data is available.
+ *
+ *  Author: Wayne Holder, 2019
+ *  License: MIT (https://opensource.org/licenses/MIT)
+ */
+class ByteRingBuffer {
+  private final byte[]      buf;
+  private final int         mask;
+  private volatile long     head, tail;           // Read and write counts (never wrap in practice)
+  private volatile long     overflow;
+  private volatile Thread   waiter;
+
+  /**
+   * @param capacity size of buffer in bytes (rounded up to a power of 2)
+   */
+  ByteRingBuffer (int capacity) {
+    int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+    buf = new byte[size];
+    mask = size - 1;
+  }
+
+  int capacity () {
+    return buf.length;
+  }
+
+  int available () {
+    return (int) (tail - head);
+  }
+
+  /**
+   * @return total number of bytes dropped because the buffer was full
+   */
+  long getOverflowCount () {
+    return overflow;
+  }
+
+  /**
+   * Discard any buffered bytes.  Only safe while no producer is running (such as before JSSCPort adds its
+   * event listener), as a write in progress could otherwise leave the bytes it stores half discarded.
+   */
+  void clear () {
+    head = tail;
+  }
+
+  /**
+   * Producer side: copy as many bytes as will fit into the buffer and count the rest as overflow
+   * @param src source array
+   * @param off offset into src[]
+   * @param len number of bytes to write
+   * @return number of bytes actually stored
+   */
+  int write (byte[] src, int off, int len) {
+    long wr = tail;
+    int count = Math.min(len, buf.length - (int) (wr - head));
+    int idx = (int) wr & mask;
+    int first = Math.min(count, buf.length - idx);
+    System.arraycopy(src, off, buf, idx, first);
+    System.arraycopy(src, off + first, buf, 0, count - first);
+    if (count < len) {
+      overflow += len - count;
+    }
+    if (count > 0) {
+      tail = wr + count;
+      Thread thread = waiter;
+      if (thread != null) {
+        LockSupport.unpark(thread);
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Consumer side: read up to len bytes, blocking until at least one byte is available
+   * @param dst destination array
+   * @param off offset into dst[]
+   * @param len maximum number of bytes to read
+   * @param timeout maximum time to wait in milliseconds, or a negative value to wait forever
+   * @return number of bytes read, or 0 if timeout expired before any data arrived
+   */
+  int read (byte[] dst, int off, int len, long timeout) throws InterruptedException {
+    if (len == 0 || !await(timeout)) {
+      return 0;
+    }
+    long rd = head;
+    int count = Math.min(len, (int) (tail - rd));
+    int idx = (int) rd & mask;
+    int first = Math.min(count, buf.length - idx);
+    System.arraycopy(buf, idx, dst, off, first);
+    System.arraycopy(buf, 0, dst, off + first, count - first);
+    head = rd + count;
+    return count;
+  }
+
+  /**
+   * Consumer side: read a single byte
+   * @param timeout maximum time to wait in milliseconds, or a negative value to wait forever
+   * @return byte value (0-255), or -1 if timeout expired
+   */
+  int read (long timeout) throws InterruptedException {
+    if (!await(timeout)) {
+      return -1;
+    }
+    long rd = head;
+    int val = buf[(int) rd & mask] & 0xFF;
+    head = rd + 1;
+    return val;
+  }
+
+  private boolean await (long timeout) throws InterruptedException {
+    if (tail != head) {
+      return true;
+    }
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(timeout, 0));
+    waiter = Thread.currentThread();
+    try {
+      while (tail == head) {
+        if (timeout < 0) {
+          LockSupport.park(this);
+        } else {
+          long remain = deadline - System.nanoTime();
+          if (remain <= 0) {
+            return false;
+          }
+          LockSupport.parkNanos(this, remain);
+        }
+        if (Thread.interrupted()) {
+          throw new InterruptedException();
+        }
+      }
+      return true;
+    } finally {
+      waiter = null;
+    }
+  }
+}
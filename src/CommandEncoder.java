@@ -0,0 +1,128 @@
+import java.util.Arrays;
+
+/**
+ *  Reusable buffer ArduinoBootDriver encodes a batch of bootloader commands into, so the read loops can
+ *  send commands without allocating.  Each command is written with begin(), put() and end().  When framed
+ *  is set, end() wraps the command in an STK500V2 message (MESSAGE_START, sequence number, size, TOKEN
+ *  and checksum).  The buffer also records the number of reply data bytes expected for each command.
+ *  The buffers only grow, so once a driver has sent its largest batch, encoding never allocates.
+ *
+ *  Author: Wayne Holder, 2019
+ *  License: MIT (https://opensource.org/licenses/MIT)
+ */
+class CommandEncoder {
+  private static final int  HEADER = 5;                 // MESSAGE_START, SEQUENCE_NUMBER, size (2), TOKEN
+  private byte[]            buf = new byte[64];
+  private int[]             expect = new int[8];
+  private int               length, count, start;
+  private boolean           framed;
+  private byte              seq;
+
+  /**
+   * Discard any encoded commands and start a new batch
+   * @param framed true to wrap each command in an STK500V2 message
+   */
+  void reset (boolean framed) {
+    this.framed = framed;
+    length = 0;
+    count = 0;
+  }
+
+  /**
+   * Start a new command
+   */
+  CommandEncoder begin () {
+    start = length;
+    if (framed) {
+      ensure(HEADER);
+      length += HEADER;
+    }
+    return this;
+  }
+
+  CommandEncoder put (int data) {
+    ensure(1);
+    buf[length++] = (byte) data;
+    return this;
+  }
+
+  /**
+   * Append a 16 bit value, MSB first
+   */
+  CommandEncoder put16 (int data) {
+    return put(data >> 8).put(data);
+  }
+
+  /**
+   * Append a 32 bit value, MSB first
+   */
+  CommandEncoder put32 (int data) {
+    return put16(data >> 16).put16(data);
+  }
+
+  CommandEncoder put (byte[] data) {
+    return put(data, 0, data.length);
+  }
+
+  CommandEncoder put (byte[] data, int off, int len) {
+    ensure(len);
+    System.arraycopy(data, off, buf, length, len);
+    length += len;
+    return this;
+  }
+
+  /**
+   * End the command started by begin() and, if framed, fill in its message header and checksum
+   * @param replyBytes number of data bytes expected in the reply
+   */
+  void end (int replyBytes) {
+    if (framed) {
+      int size = length - start - HEADER;
+      buf[start] = 0x1B;
+      buf[start + 1] = seq++;
+      buf[start + 2] = (byte) (size >> 8);
+      buf[start + 3] = (byte) size;
+      buf[start + 4] = 0x0E;
+      byte chk = 0;
+      for (int ii = start; ii < length; ii++) {
+        chk ^= buf[ii];
+      }
+      put(chk);
+    }
+    if (count == expect.length) {
+      expect = Arrays.copyOf(expect, count * 2);
+    }
+    expect[count++] = replyBytes;
+  }
+
+  /**
+   * @return buffer holding the encoded commands (only the first length() bytes are valid)
+   */
+  byte[] array () {
+    return buf;
+  }
+
+  int length () {
+    return length;
+  }
+
+  /**
+   * @return number of commands in the batch
+   */
+  int count () {
+    return count;
+  }
+
+  /**
+   * @return number of reply data bytes expected for each command (only the first count() entries are valid)
+   */
+  int[] expected () {
+    return expect;
+  }
+
+  private void ensure (int bytes) {
+    if (length + bytes > buf.length) {
+      buf = Arrays.copyOf(buf, Math.max(buf.length * 2, length + bytes));
+    }
+  }
+}
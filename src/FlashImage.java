@@ -0,0 +1,276 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ *  Image of a device's flash memory built from the blocks passed by ArduinoBootDriver.readFlash(), so one
+ *  read can feed every view (hex dump, bootloader dump and disassembly).  Only pages holding programmed
+ *  data are stored, in a table indexed by page number, so memory use is proportional to the programmed
+ *  flash, rather than to the size of the part.  The image also tracks which parts are known (read from the
+ *  device) and which are unknown (not read yet, or skipped by a sparse read), in 16 byte units, so blocks
+ *  smaller than a page also count.  Unstored pages read back as erased (0xFF).
+ *
+ *  Hashes are computed as the data streams in, so checking, or comparing an image never takes a second
+ *  pass.  Each page's CRC32 is computed once the whole page is known, and pages are fed to a SHA-256 of
+ *  the whole image in address order as soon as every page before them is known, so reads can arrive in
+ *  any order (such as the bootloader first and the rest of the flash later).
+ *  The image also carries the device signature and fuses read before the flash.
+ *
+ *  Author: Wayne Holder, 2019
+ *  License: MIT (https://opensource.org/licenses/MIT)
+ */
+class FlashImage implements ArduinoBootDriver.BlockHandler {
+  private static final int  UNIT = 16;            // Size of the units known bytes are tracked in
+  private final int       base, size, pageSize;
+  private final byte[][]  pages;                // Indexed by page number, null if erased, or unknown
+  private final BitSet    known = new BitSet();   // Indexed by unit number
+  private final long[]    pageCrc;              // CRC32 of each page, or -1 until the whole page is known
+  private final byte[]    blank;                // Erased page used to hash pages that aren't stored
+  private final CRC32     crc = new CRC32();
+  private final MessageDigest sha;
+  private int             programmed, hashed;   // hashed is the number of pages fed to sha
+  byte[]                  signature, fuses;
+
+  /**
+   * @param base address of first byte in image
+   * @param size size of image in bytes
+   * @param pageSize size of each page in bytes
+   */
+  FlashImage (int base, int size, int pageSize) {
+    this.base = base;
+    this.size = size;
+    this.pageSize = pageSize;
+    pages = new byte[(size + pageSize - 1) / pageSize][];
+    pageCrc = new long[pages.length];
+    Arrays.fill(pageCrc, -1);
+    blank = new byte[pageSize];
+    Arrays.fill(blank, (byte) 0xFF);
+    try {
+      sha = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException ex) {
+      // Every Java platform is required to support SHA-256
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  int getBase () {
+    return base;
+  }
+
+  int getSize () {
+    return size;
+  }
+
+  int getPageSize () {
+    return pageSize;
+  }
+
+  /**
+   * @return number of pages stored because they hold programmed data
+   */
+  int getProgrammedPages () {
+    return programmed;
+  }
+
+  /**
+   * Store a block of data read from the device (implements ArduinoBootDriver.BlockHandler).  Only the
+   * 16 byte units the block covers completely are marked as known.
+   */
+  public boolean block (int addr, byte[] buf, int off, int len) {
+    int end = Math.min(addr + len, base + size);
+    for (int ii = Math.max(addr, base); ii < end; ) {
+      int page = (ii - base) / pageSize;
+      int pageOff = (ii - base) % pageSize;
+      int count = Math.min(pageSize - pageOff, end - ii);
+      int src = off + ii - addr;
+      if (pages[page] == null && !isBlank(buf, src, count)) {
+        pages[page] = new byte[pageSize];
+        Arrays.fill(pages[page], (byte) 0xFF);
+        programmed++;
+      }
+      if (pages[page] != null) {
+        System.arraycopy(buf, src, pages[page], pageOff, count);
+      }
+      ii += count;
+    }
+    // A partial unit at the end of the image counts as covered
+    int from = (Math.max(addr, base) - base + UNIT - 1) / UNIT;
+    int to = end - base == size ? (size + UNIT - 1) / UNIT : (end - base) / UNIT;
+    if (from < to) {
+      known.set(from, to);
+      int first = (Math.max(addr, base) - base) / pageSize;
+      int last = (end - base - 1) / pageSize;
+      for (int page = first; page <= last; page++) {
+        if (pageCrc[page] < 0 && isPageKnown(page)) {
+          crc.reset();
+          crc.update(pages[page] != null ? pages[page] : blank, 0, getPageLength(page));
+          pageCrc[page] = crc.getValue();
+        }
+      }
+      while (hashed < pages.length && pageCrc[hashed] >= 0) {
+        sha.update(pages[hashed] != null ? pages[hashed] : blank, 0, getPageLength(hashed));
+        hashed++;
+      }
+    }
+    return true;
+  }
+
+  private boolean isPageKnown (int page) {
+    int end = (page * pageSize + getPageLength(page) + UNIT - 1) / UNIT;
+    return known.nextClearBit(page * pageSize / UNIT) >= end;
+  }
+
+  private int getPageLength (int page) {
+    return Math.min(pageSize, size - page * pageSize);
+  }
+
+  /**
+   * @return CRC32 of each page, indexed by page number, or -1 for each page not yet completely read
+   */
+  long[] getPageCrcs () {
+    return pageCrc.clone();
+  }
+
+  /**
+   * Compare this image's page CRCs with those of another image of the same part
+   * @param crcs page CRCs returned by getPageCrcs()
+   * @return numbers of the pages known in both images whose CRCs differ
+   */
+  List<Integer> getMismatchedPages (long[] crcs) {
+    List<Integer> mismatches = new ArrayList<>();
+    for (int page = 0; page < Math.min(pageCrc.length, crcs.length); page++) {
+      if (pageCrc[page] >= 0 && crcs[page] >= 0 && pageCrc[page] != crcs[page]) {
+        mismatches.add(page);
+      }
+    }
+    return mismatches;
+  }
+
+  /**
+   * @return true if every page has been read from the device
+   */
+  boolean isComplete () {
+    return hashed == pages.length;
+  }
+
+  /**
+   * Finish the SHA-256 of the whole image.  Pages not yet read from the device (such as those skipped by
+   * a sparse read) are hashed as erased, which only costs hashing them, as the pages already read were
+   * hashed as they arrived.
+   * @return SHA-256 digest (32 bytes)
+   */
+  byte[] getSha256 () {
+    try {
+      MessageDigest digest = (MessageDigest) sha.clone();
+      for (int page = hashed; page < pages.length; page++) {
+        digest.update(pages[page] != null ? pages[page] : blank, 0, getPageLength(page));
+      }
+      return digest.digest();
+    } catch (CloneNotSupportedException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  /**
+   * @return true if addr has been read from the device
+   */
+  boolean isKnown (int addr) {
+    return addr >= base && addr < base + size && known.get((addr - base) / UNIT);
+  }
+
+  /**
+   * @return list of {start, end} address ranges in addr to addr + length that haven't been read from
+   * the device, merged where they touch (empty if all of it is known)
+   */
+  List<int[]> getUnknownRanges (int addr, int length) {
+    List<int[]> ranges = new ArrayList<>();
+    int end = Math.min(addr + length, base + size);
+    int unit = (Math.max(addr, base) - base) / UNIT;
+    int last = (end - base + UNIT - 1) / UNIT;
+    while ((unit = known.nextClearBit(unit)) < last) {
+      int next = known.nextSetBit(unit);
+      next = next < 0 || next > last ? last : next;
+      ranges.add(new int[] {Math.max(addr, base + unit * UNIT), Math.min(end, base + next * UNIT)});
+      unit = next;
+    }
+    return ranges;
+  }
+
+  /**
+   * @return value of byte at addr (0xFF if erased, unknown, or outside the image)
+   */
+  byte get (int addr) {
+    int off = addr - base;
+    if (off < 0 || off >= size) {
+      return (byte) 0xFF;
+    }
+    byte[] page = pages[off / pageSize];
+    return page != null ? page[off % pageSize] : (byte) 0xFF;
+  }
+
+  /**
+   * Copy part of the image into an array (unknown and erased regions are filled with 0xFF)
+   * @param addr address of first byte to copy
+   * @param dst destination array
+   * @param off offset into dst[]
+   * @param len number of bytes to copy
+   */
+  void copy (int addr, byte[] dst, int off, int len) {
+    for (int ii = addr; ii < addr + len; ) {
+      int page = (ii - base) / pageSize;
+      int pageOff = (ii - base) % pageSize;
+      int count = Math.min(pageSize - pageOff, addr + len - ii);
+      if (ii < base || ii >= base + size || pages[page] == null) {
+        count = ii < base ? Math.min(base - ii, addr + len - ii) : count;
+        Arrays.fill(dst, off + ii - addr, off + ii - addr + count, (byte) 0xFF);
+      } else {
+        System.arraycopy(pages[page], pageOff, dst, off + ii - addr, count);
+      }
+      ii += count;
+    }
+  }
+
+  byte[] toArray (int addr, int length) {
+    byte[] data = new byte[length];
+    copy(addr, data, 0, length);
+    return data;
+  }
+
+  /**
+   * Find the first programmed (not 0xFF) byte, such as the start of a bootloader when the fuses that give
+   * its size can't be read
+   * @param addr address to start search at
+   * @param end address to end search at
+   * @return address of first programmed byte, or end if all bytes in the range are erased
+   */
+  int findProgrammed (int addr, int end) {
+    int limit = Math.min(end, base + size);
+    addr = Math.max(addr, base);
+    while (addr < limit) {
+      int off = addr - base;
+      byte[] page = pages[off / pageSize];
+      if (page == null) {
+        addr = base + (off / pageSize + 1) * pageSize;
+        continue;
+      }
+      if (page[off % pageSize] != (byte) 0xFF) {
+        return addr;
+      }
+      addr++;
+    }
+    return end;
+  }
+
+  private static boolean isBlank (byte[] buf, int off, int len) {
+    for (int ii = off; ii < off + len; ii++) {
+      if (buf[ii] != (byte) 0xFF) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
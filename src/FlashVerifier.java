@@ -0,0 +1,111 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *  Verifies a device's flash against a golden image (an IntelHex file, or binary) by reading only the
+ *  address ranges the image covers and comparing each block as it arrives from readFlash(), so verifying
+ *  a board costs its programmed bytes, rather than a full dump.  By default the read stops at the first
+ *  mismatch, but it can also carry on and collect every mismatch.
+ *
+ *  Author: Wayne Holder, 2019
+ *  License: MIT (https://opensource.org/licenses/MIT)
+ */
+class FlashVerifier {
+  private static final int    MERGE_GAP = 64;       // Read through gaps smaller than this, rather than start a new read
+  private final IntelHex      golden;
+  private boolean             stopOnMismatch = true;
+
+  static class Result {
+    boolean     passed, stopped;
+    int         bytesRead, bytesCompared;
+    int         firstAddr = -1;                       // Address of first mismatch, or -1 if none
+    byte        expected, actual;                     // Values at firstAddr
+    List<int[]> mismatches = new ArrayList<>();       // {start, end} ranges of mismatched bytes
+
+    public String toString () {
+      if (passed) {
+        return String.format("PASS - %d bytes verified (%d bytes read)", bytesCompared, bytesRead);
+      }
+      return String.format("FAIL - first mismatch at 0x%04X (expected 0x%02X, read 0x%02X), %d mismatched %s%s",
+                           firstAddr, expected & 0xFF, actual & 0xFF, mismatches.size(),
+                           mismatches.size() == 1 ? "range" : "ranges", stopped ? " (stopped at first)" : "");
+    }
+  }
+
+  /**
+   * @param golden image to verify against (only the bytes defined in golden.used are compared)
+   */
+  FlashVerifier (IntelHex golden) {
+    this.golden = golden;
+  }
+
+  /**
+   * @param stop true to stop reading at the first mismatch (default), or false to read every range the
+   * golden image covers and collect every mismatch
+   */
+  void setStopOnMismatch (boolean stop) {
+    stopOnMismatch = stop;
+  }
+
+  /**
+   * @return {start, end} address ranges verify() reads (ranges closer than MERGE_GAP are merged)
+   */
+  List<int[]> getRanges () {
+    List<int[]> ranges = new ArrayList<>();
+    int ii = golden.used.nextSetBit(0);
+    while (ii >= 0) {
+      int end = golden.used.nextClearBit(ii);
+      int[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+      if (last != null && golden.base + ii - last[1] < MERGE_GAP) {
+        last[1] = golden.base + end;
+      } else {
+        ranges.add(new int[] {golden.base + ii, golden.base + end});
+      }
+      ii = golden.used.nextSetBit(end);
+    }
+    return ranges;
+  }
+
+  /**
+   * Read and compare the ranges covered by the golden image
+   * @param driver driver connected to the device's bootloader
+   * @return Result with pass/fail and the mismatches found
+   */
+  Result verify (ArduinoBootDriver driver) throws Exception {
+    Result result = new Result();
+    for (int[] range : getRanges()) {
+      result.bytesRead += driver.readFlash(range[0], range[1] - range[0], (addr, buf, off, len) -> {
+        for (int ii = 0; ii < len; ii++) {
+          int idx = addr + ii - golden.base;
+          if (golden.used.get(idx)) {
+            result.bytesCompared++;
+            if (buf[off + ii] != golden.data[idx]) {
+              addMismatch(result, addr + ii, buf[off + ii]);
+            }
+          }
+        }
+        return !(stopOnMismatch && result.firstAddr >= 0);
+      });
+      if (stopOnMismatch && result.firstAddr >= 0) {
+        result.stopped = true;
+        break;
+      }
+    }
+    result.passed = result.firstAddr < 0;
+    return result;
+  }
+
+  private void addMismatch (Result result, int addr, byte actual) {
+    if (result.firstAddr < 0) {
+      result.firstAddr = addr;
+      result.expected = golden.data[addr - golden.base];
+      result.actual = actual;
+    }
+    int[] last = result.mismatches.isEmpty() ? null : result.mismatches.get(result.mismatches.size() - 1);
+    if (last != null && last[1] == addr) {
+      last[1] = addr + 1;
+    } else {
+      result.mismatches.add(new int[] {addr, addr + 1});
+    }
+  }
+}
@@ -0,0 +1,132 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ *  Reads an Intel HEX file into a contiguous image spanning the lowest to highest address used
+ *  Supports record types 00 (data), 01 (end of file), 02 (extended segment address) and
+ *  04 (extended linear address).  Other record types are ignored.
+ *
+ *  Author: Wayne Holder, 2019
+ *  License: MIT (https://opensource.org/licenses/MIT)
+ */
+class IntelHex {
+  int     base, end;      // Lowest address and one past highest address in file
+  byte[]  data;           // Image from base to end (unused bytes are 0xFF)
+  BitSet  used;           // Bytes defined in file, indexed by (address - base)
+
+  private IntelHex () { }
+
+  static IntelHex read (File file) throws IOException {
+    try (InputStream in = new FileInputStream(file)) {
+      return read(in);
+    }
+  }
+
+  static IntelHex read (InputStream in) throws IOException {
+    BufferedReader rdr = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII));
+    List<Integer> addrs = new ArrayList<>();
+    List<byte[]> recs = new ArrayList<>();
+    int offset = 0;
+    int lineNum = 0;
+    String line;
+    while ((line = rdr.readLine()) != null) {
+      lineNum++;
+      line = line.trim();
+      if (!line.startsWith(":")) {
+        continue;
+      }
+      byte[] rec;
+      try {
+        rec = new byte[(line.length() - 1) / 2];
+        for (int ii = 0; ii < rec.length; ii++) {
+          rec[ii] = (byte) Integer.parseInt(line.substring(ii * 2 + 1, ii * 2 + 3), 16);
+        }
+      } catch (NumberFormatException ex) {
+        throw new IOException("Invalid hex digit on line " + lineNum);
+      }
+      int len = rec.length > 0 ? rec[0] & 0xFF : -1;
+      if (len < 0 || rec.length != len + 5) {
+        throw new IOException("Invalid record length on line " + lineNum);
+      }
+      byte chk = 0;
+      for (byte cc : rec) {
+        chk += cc;
+      }
+      if (chk != 0) {
+        throw new IOException("Bad checksum on line " + lineNum);
+      }
+      int addr = ((rec[1] & 0xFF) << 8) + (rec[2] & 0xFF);
+      switch (rec[3]) {
+        case 0x00:                // Data record
+          byte[] tmp = new byte[len];
+          System.arraycopy(rec, 4, tmp, 0, len);
+          addrs.add(offset + addr);
+          recs.add(tmp);
+          break;
+        case 0x01:                // End of file
+          return build(addrs, recs);
+        case 0x02:                // Extended segment address
+          offset = (((rec[4] & 0xFF) << 8) + (rec[5] & 0xFF)) << 4;
+          break;
+        case 0x04:                // Extended linear address
+          offset = (((rec[4] & 0xFF) << 8) + (rec[5] & 0xFF)) << 16;
+          break;
+      }
+    }
+    return build(addrs, recs);
+  }
+
+  /**
+   * Wrap a binary image, such as a flash dump, as an IntelHex.  Each 256 byte page that is all 0xFF is
+   * marked as unused, as a dump includes the erased flash an Intel HEX file would leave out.
+   * @param data binary image
+   * @param base address of first byte in data
+   */
+  static IntelHex fromBinary (byte[] data, int base) throws IOException {
+    IntelHex hex = new IntelHex();
+    hex.base = base;
+    hex.end = base + data.length;
+    hex.data = data;
+    hex.used = new BitSet(data.length);
+    for (int page = 0; page < data.length; page += 256) {
+      int end = Math.min(page + 256, data.length);
+      for (int ii = page; ii < end; ii++) {
+        if (data[ii] != (byte) 0xFF) {
+          hex.used.set(page, end);
+          break;
+        }
+      }
+    }
+    if (hex.used.isEmpty()) {
+      throw new IOException("Binary image is blank");
+    }
+    return hex;
+  }
+
+  private static IntelHex build (List<Integer> addrs, List<byte[]> recs) throws IOException {
+    if (recs.isEmpty()) {
+      throw new IOException("No data records found");
+    }
+    IntelHex hex = new IntelHex();
+    hex.base = Integer.MAX_VALUE;
+    for (int ii = 0; ii < recs.size(); ii++) {
+      int addr = addrs.get(ii);
+      hex.base = Math.min(hex.base, addr);
+      hex.end = Math.max(hex.end, addr + recs.get(ii).length);
+    }
+    hex.data = new byte[hex.end - hex.base];
+    Arrays.fill(hex.data, (byte) 0xFF);
+    hex.used = new BitSet(hex.data.length);
+    for (int ii = 0; ii < recs.size(); ii++) {
+      int off = addrs.get(ii) - hex.base;
+      byte[] rec = recs.get(ii);
+      System.arraycopy(rec, 0, hex.data, off, rec.length);
+      hex.used.set(off, off + rec.length);
+    }
+    return hex;
+  }
+}
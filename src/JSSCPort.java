@@ -1,5 +1,8 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.*;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.prefs.Preferences;
 import java.util.regex.Pattern;
 
@@ -22,10 +25,10 @@ import javax.swing.event.MenuListener;
  *  Author: Wayne Holder, 2015-2017 (first version 10/30/2015)
  */
 
-public class JSSCPort implements SerialPortEventListener {
+public class JSSCPort implements SerialTransport, SerialPortEventListener {
   private static final Map<String,Integer> baudRates = new LinkedHashMap<>();
-  private ArrayBlockingQueue<Integer>  queue = new ArrayBlockingQueue<>(1000);
   private static Pattern      macPat = Pattern.compile("cu.");
+  private static Pattern      usbPat = Pattern.compile("(ttyUSB|ttyACM|cu\\.usb|COM)[^/]*$");
   private static final int    dataBits = 8, stopBits = SerialPort.STOPBITS_1, parity = SerialPort.PARITY_NONE;
   private static final int    flowCtrl = SerialPort.FLOWCONTROL_NONE;
   private static final int    eventMasks = 0;   // See: SerialPort.MASK_RXCHAR, MASK_TXEMPTY, MASK_CTS, MASK_DSR
@@ -33,12 +36,10 @@ public class JSSCPort implements SerialPortEventListener {
   private String              portName;
   private int                 baudRate;
   private SerialPort          serialPort;
-  private boolean             hasListener;
+  private boolean             hasListener, dtrOn;
   private List<RXEvent>       rxHandlers = new ArrayList<>();
-
-  interface RXEvent {
-    void rxChar (byte cc);
-  }
+  private volatile ByteRingBuffer rxBuffer = new ByteRingBuffer(4096);   // Only replaced, or cleared while closed
+  private byte[][]            txBufs = new byte[0][];
 
   static {
     baudRates.put("110",    SerialPort.BAUDRATE_110);
@@ -78,6 +79,72 @@ public class JSSCPort implements SerialPortEventListener {
     baudRate = prefs.getInt("serial.baud", 115200);
   }
 
+  /**
+   * Creates a JSSCPort for a specific port, rather than the one selected in the "Port" menu
+   * @param prefs Preferences used to read the default baud rate
+   * @param portName name of serial port
+   */
+  public JSSCPort (Preferences prefs, String portName) throws SerialPortException {
+    this(prefs);
+    this.portName = portName;
+  }
+
+  public String getPortName () {
+    return portName;
+  }
+
+  /**
+   * On Linux, identifies the USB device attached to the port by its vendor id, product id, serial number
+   * and position in the USB tree.  On other platforms, the port name already encodes this information.
+   * @return fingerprint of device attached to port
+   */
+  public String getFingerprint () {
+    if (portName != null && SerialNativeInterface.getOsType() == SerialNativeInterface.OS_LINUX) {
+      try {
+        File dir = new File("/sys/class/tty/" + new File(portName).getName() + "/device").getCanonicalFile();
+        for (; dir != null; dir = dir.getParentFile()) {
+          if (new File(dir, "idVendor").exists()) {
+            return readSysFile(dir, "idVendor") + ":" + readSysFile(dir, "idProduct") + ":" +
+                   readSysFile(dir, "serial") + "@" + dir.getName();
+          }
+        }
+      } catch (IOException ex) {
+        // Fall through and use port name
+      }
+    }
+    return portName;
+  }
+
+  private static String readSysFile (File dir, String name) {
+    try {
+      return new String(Files.readAllBytes(new File(dir, name).toPath()), StandardCharsets.US_ASCII).trim();
+    } catch (IOException ex) {
+      return "";
+    }
+  }
+
+  /**
+   * @return names of all the serial ports currently available
+   */
+  public String[] getPortNames () {
+    return SerialPortList.getPortNames(macPat);
+  }
+
+  /**
+   * @return names of the serial ports currently available that are USB serial adapters (ttyUSB*, ttyACM*,
+   * or cu.usb*), which leaves out built in UARTs and Bluetooth ports (Windows COM names don't tell, so all
+   * COM ports are included)
+   */
+  public String[] getUsbPortNames () {
+    List<String> names = new ArrayList<>();
+    for (String pName : SerialPortList.getPortNames(macPat)) {
+      if (usbPat.matcher(pName).find()) {
+        names.add(pName);
+      }
+    }
+    return names.toArray(new String[0]);
+  }
+
   public boolean touch1200 () throws SerialPortException {
     try {
       if (serialPort != null) {
@@ -126,6 +193,17 @@ public class JSSCPort implements SerialPortEventListener {
     this.baudRate = baudRate;
   }
 
+  public boolean changeBaudRate (int baudRate) {
+    try {
+      // Pass the current state of DTR so setParams() doesn't pulse it and reset the board
+      return serialPort != null && serialPort.isOpened() &&
+             serialPort.setParams(baudRate, dataBits, stopBits, parity, false, dtrOn);
+    } catch (SerialPortException ex) {
+      ex.printStackTrace();
+      return false;
+    }
+  }
+
   public boolean open (RXEvent handler) throws SerialPortException {
     return open(handler, this.baudRate);
   }
@@ -141,8 +219,11 @@ public class JSSCPort implements SerialPortEventListener {
       serialPort.openPort();
       //System.out.println("JSSCPort.open()");
       serialPort.setParams(baudRate, dataBits, stopBits, parity, false, false);  // baud, 8 bits, 1 stop bit, no parity
+      dtrOn = false;
       serialPort.setEventsMask(eventMasks);
       serialPort.setFlowControlMode(flowCtrl);
+      // Safe, as the event listener (the buffer's producer) isn't added until after this
+      rxBuffer.clear();
       serialPort.addEventListener(JSSCPort.this);
       hasListener = true;
       setRXHandler(handler);
@@ -151,6 +232,13 @@ public class JSSCPort implements SerialPortEventListener {
     return false;
   }
 
+  /**
+   * @return true if the port is open (and JSSC's event thread may be writing to the input buffer)
+   */
+  public boolean isOpen () {
+    return serialPort != null && serialPort.isOpened();
+  }
+
   public void close () {
     if (serialPort != null && serialPort.isOpened()) {
       try {
@@ -176,17 +264,11 @@ public class JSSCPort implements SerialPortEventListener {
         int rxCount = se.getEventValue();
         byte[] inChars = serialPort.readBytes(rxCount);
         if (rxHandlers.size() > 0) {
-          for (byte cc : inChars) {
-            for (RXEvent handler : rxHandlers) {
-              handler.rxChar(cc);
-            }
+          for (RXEvent handler : rxHandlers) {
+            handler.rxBytes(inChars, 0, inChars.length);
           }
         } else {
-          for (byte cc : inChars) {
-            if (queue.remainingCapacity() > 0) {
-              queue.add((int) cc);
-            }
-          }
+          rxBuffer.write(inChars, 0, inChars.length);
         }
       }
     } catch (Exception ex) {
@@ -208,6 +290,24 @@ public class JSSCPort implements SerialPortEventListener {
     serialPort.writeBytes(data);
   }
 
+  public void sendBytes (byte[] data, int off, int len) throws SerialPortException {
+    if (off == 0 && len == data.length) {
+      serialPort.writeBytes(data);
+    } else {
+      // JSSC only writes whole arrays, so keep a copy buffer for each length (frame lengths alternate, such
+      // as between the Load Address and Program Page writes of a flash write, or the writes of a verify)
+      if (txBufs.length <= len) {
+        txBufs = Arrays.copyOf(txBufs, len + 1);
+      }
+      byte[] txBuf = txBufs[len];
+      if (txBuf == null) {
+        txBuf = txBufs[len] = new byte[len];
+      }
+      System.arraycopy(data, off, txBuf, 0, len);
+      serialPort.writeBytes(txBuf);
+    }
+  }
+
   public void sendString (String data) throws SerialPortException {
     serialPort.writeString(data);
   }
@@ -215,7 +315,7 @@ public class JSSCPort implements SerialPortEventListener {
   // Note: true set TTL level to HIGH (DTR off)
   public void setDTR (boolean state) {
     try {
-      serialPort.setDTR(!state);
+      serialPort.setDTR(dtrOn = !state);
     } catch (Exception ex) {
       ex.printStackTrace();
     }
@@ -256,13 +356,34 @@ public class JSSCPort implements SerialPortEventListener {
     return true;
   }
 
+  /**
+   * Sets the size of the buffer used to hold received data when no RXEvent handler is defined
+   * Note: discards any data currently in the buffer, so it can only be called while the port is closed, as
+   * JSSC's event thread could otherwise still be writing to the old buffer
+   * @param capacity size of buffer in bytes (rounded up to a power of 2)
+   * @throws IllegalStateException if the port is open
+   */
+  public void setInputBufferSize (int capacity) {
+    if (isOpen()) {
+      throw new IllegalStateException("Input buffer size can't be changed while the port is open");
+    }
+    rxBuffer = new ByteRingBuffer(capacity);
+  }
+
+  /**
+   * @return number of received bytes dropped because the input buffer was full
+   */
+  public long getOverflowCount () {
+    return rxBuffer.getOverflowCount();
+  }
+
   public byte getChar () {
     int val = 0;
     if (rxHandlers.size() > 0) {
       throw new IllegalStateException("Can't call when RXEvent is defined");
     } else {
       try {
-        val = queue.take();
+        val = rxBuffer.read(-1);
       } catch (InterruptedException ex) {
         ex.printStackTrace(System.out);
       }
@@ -270,6 +391,21 @@ public class JSSCPort implements SerialPortEventListener {
     return (byte) val;
   }
 
+  /**
+   * Reads a block of received data (only usable when no RXEvent handler is defined)
+   * @param buf destination array
+   * @param off offset into buf[]
+   * @param len maximum number of bytes to read
+   * @param timeout maximum time to wait for data in milliseconds, or -1 to wait forever
+   * @return number of bytes read, or 0 if timeout expired before any data arrived
+   */
+  public int read (byte[] buf, int off, int len, int timeout) throws InterruptedException {
+    if (rxHandlers.size() > 0) {
+      throw new IllegalStateException("Can't call when RXEvent is defined");
+    }
+    return rxBuffer.read(buf, off, len, timeout);
+  }
+
   public JMenu getPortMenu () {
     JMenu menu = new JMenu("Port");
     menu.addMenuListener(new MenuListener() {
@@ -0,0 +1,181 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *  Runs a job against the bootloaders on several serial ports at once, with one ArduinoBootDriver per
+ *  port, so a rack of boards takes about as long as the slowest board, rather than the sum of all of them.
+ *  A failure on one port is reported in that port's Result and does not affect the other ports.
+ *
+ *  Author: Wayne Holder, 2019
+ *  License: MIT (https://opensource.org/licenses/MIT)
+ */
+class MultiPortReader {
+  private final TransportFactory                  transports;
+  private final int                               maxThreads;
+  private ProgressListener                        listener = (port, txt) -> { };
+  private ProtocolCache                           cache;
+
+  interface TransportFactory {
+    SerialTransport create (String port) throws Exception;
+  }
+
+  interface ProgressListener {
+    /**
+     * Called from the port's worker thread with each complete line of progress text
+     * @param port name of port
+     * @param txt line of text (without line terminator)
+     */
+    void progress (String port, String txt);
+  }
+
+  interface PortJob {
+    /**
+     * Called after the driver has synced with the bootloader
+     * @param port name of port
+     * @param driver driver connected to the port's bootloader
+     * @param result Result for this port (job can set the message field)
+     * @return number of bytes transferred (used to compute throughput)
+     */
+    int run (String port, ArduinoBootDriver driver, Result result) throws Exception;
+  }
+
+  static class Result {
+    String    port, message;
+    boolean   success;
+    int       bytes;
+    long      nanos;
+
+    Result (String port) {
+      this.port = port;
+    }
+  }
+
+  static class Summary {
+    List<Result>  results;
+    int           passed, failed;
+    long          bytes, nanos, slowest;
+
+    /**
+     * @return aggregate bytes per second transferred across all ports
+     */
+    double getThroughput () {
+      return nanos > 0 ? bytes * 1e9 / nanos : 0;
+    }
+
+    public String toString () {
+      return String.format("%d ports: %d passed, %d failed, %d bytes in %.1f secs (slowest port %.1f secs), %.0f bytes/sec",
+                           results.size(), passed, failed, bytes, nanos / 1e9, slowest / 1e9, getThroughput());
+    }
+  }
+
+  /**
+   * @param transports creates a SerialTransport for a port name
+   * @param maxThreads maximum number of ports to run at the same time
+   */
+  MultiPortReader (TransportFactory transports, int maxThreads) {
+    this.transports = transports;
+    this.maxThreads = maxThreads;
+  }
+
+  void setProgressListener (ProgressListener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * @param cache ProtocolCache shared by the drivers for all ports, or null
+   */
+  void setCache (ProtocolCache cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * Run job on each port and wait for all of them to finish
+   * @param ports list of port names
+   * @param job PortJob to run on each port
+   * @return Summary containing a Result for each port (in the same order as ports)
+   */
+  Summary run (List<String> ports, PortJob job) throws InterruptedException {
+    AtomicInteger count = new AtomicInteger();
+    ThreadFactory factory = (run) -> {
+      Thread thread = new Thread(run, "MultiPortReader-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(maxThreads, ports.size())), factory);
+    long start = System.nanoTime();
+    try {
+      List<Future<Result>> futures = new ArrayList<>();
+      for (String port : ports) {
+        futures.add(pool.submit(() -> runPort(port, job)));
+      }
+      Summary summary = new Summary();
+      summary.results = new ArrayList<>();
+      for (int ii = 0; ii < futures.size(); ii++) {
+        Result result;
+        try {
+          result = futures.get(ii).get();
+        } catch (ExecutionException ex) {
+          result = new Result(ports.get(ii));
+          result.message = ex.getCause().toString();
+        }
+        summary.results.add(result);
+        if (result.success) {
+          summary.passed++;
+        } else {
+          summary.failed++;
+        }
+        summary.bytes += result.bytes;
+        summary.slowest = Math.max(summary.slowest, result.nanos);
+      }
+      summary.nanos = System.nanoTime() - start;
+      return summary;
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  private Result runPort (String port, PortJob job) {
+    Result result = new Result(port);
+    long start = System.nanoTime();
+    StringBuilder line = new StringBuilder();
+    // Collect driver's progress text into lines so output from different ports doesn't interleave
+    ArduinoBootDriver.Listener lineListener = (txt) -> {
+      for (char cc : txt.toCharArray()) {
+        if (cc == '\n') {
+          if (line.length() > 0) {
+            listener.progress(port, line.toString());
+            line.setLength(0);
+          }
+        } else {
+          line.append(cc);
+        }
+      }
+    };
+    ArduinoBootDriver driver = null;
+    try {
+      driver = new ArduinoBootDriver(transports.create(port), null, lineListener);
+      driver.setCache(cache);
+      driver.sync();
+      result.bytes = job.run(port, driver, result);
+      result.success = true;
+    } catch (UnableToComply ex) {
+      result.message = ex.message;
+    } catch (Exception ex) {
+      result.message = ex.toString();
+    } finally {
+      if (driver != null) {
+        driver.close();
+      }
+      result.nanos = System.nanoTime() - start;
+    }
+    listener.progress(port, result.success ? "done" + (result.message != null ? " - " + result.message : "") :
+                                             "failed - " + result.message);
+    return result;
+  }
+}
@@ -0,0 +1,74 @@
+import java.util.prefs.Preferences;
+
+/**
+ *  Remembers, in Preferences, the bootloader protocol and baud rate last detected on each serial port so
+ *  ArduinoBootDriver.sync() can try that combination first and skip probing.  Each entry also records a
+ *  fingerprint of the device attached to the port and is ignored if a different device is now attached.
+ *
+ *  Author: Wayne Holder, 2019
+ *  License: MIT (https://opensource.org/licenses/MIT)
+ */
+class ProtocolCache {
+  private static final int        MAX_KEY = Preferences.MAX_KEY_LENGTH;
+  private final Preferences       prefs;
+
+  static class Entry {
+    ArduinoBootDriver.Protocol  protocol;
+    int                         baudRate;
+  }
+
+  ProtocolCache (Preferences prefs) {
+    this.prefs = prefs.node("protocol.cache");
+  }
+
+  /**
+   * @param portName name of serial port
+   * @param fingerprint fingerprint of device currently attached to port (see SerialTransport.getFingerprint())
+   * @return cached Entry, or null if no entry, or entry was for a different device
+   */
+  Entry get (String portName, String fingerprint) {
+    if (portName == null) {
+      return null;
+    }
+    String val = prefs.get(getKey(portName), null);
+    if (val != null) {
+      // Format is <protocol>,<baud rate>,<fingerprint>
+      String[] parts = val.split(",", 3);
+      if (parts.length == 3 && parts[2].equals(String.valueOf(fingerprint))) {
+        try {
+          Entry entry = new Entry();
+          entry.protocol = ArduinoBootDriver.Protocol.valueOf(parts[0]);
+          entry.baudRate = Integer.parseInt(parts[1]);
+          return entry;
+        } catch (IllegalArgumentException ex) {
+          // Ignore malformed entry
+        }
+      }
+    }
+    return null;
+  }
+
+  void put (String portName, String fingerprint, ArduinoBootDriver.Protocol protocol, int baudRate) {
+    if (portName != null) {
+      prefs.put(getKey(portName), protocol.name() + "," + baudRate + "," + fingerprint);
+    }
+  }
+
+  void remove (String portName) {
+    if (portName != null) {
+      prefs.remove(getKey(portName));
+    }
+  }
+
+  void clear () {
+    try {
+      prefs.clear();
+    } catch (Exception ex) {
+      ex.printStackTrace();
+    }
+  }
+
+  private static String getKey (String portName) {
+    return portName.length() > MAX_KEY ? portName.substring(portName.length() - MAX_KEY) : portName;
+  }
+}
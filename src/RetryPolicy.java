@@ -0,0 +1,154 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Derives the timeouts and retry limits ArduinoBootDriver uses from measurements of the live link, rather
+ *  than from fixed values.  Each successful exchange updates a smoothed round trip time (the time from sending
+ *  a command to receiving the first byte of its reply) and its variance, using the same estimator as TCP
+ *  (RFC 6298), plus the time per byte of the reply.  Short commands, page reads and page writes are tracked
+ *  separately, as some bootloaders read a whole page before replying, and every bootloader erases and
+ *  programs a page before it replies to a write.  The timeout for a command is then its expected round
+ *  trip time plus twice the expected transfer time, so a failure is detected in a few milliseconds on a fast
+ *  link, while a slow link still gets all the time it needs.  Each timeout in a row doubles the next one (up
+ *  to the protocol's default), and the delay between retries backs off in the same, bounded way.
+ *
+ *  Until a round trip has been measured (such as while probing for the bootloader), the protocol's default
+ *  timeout is used.
+ *
+ *  Author: Wayne Holder, 2019
+ *  License: MIT (https://opensource.org/licenses/MIT)
+ */
+class RetryPolicy {
+  private static final long   MIN_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(20);
+  private static final long   IDLE_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(500);
+  private static final long   BACKOFF_BASE = TimeUnit.MILLISECONDS.toNanos(20);
+  private static final long   BACKOFF_MAX = TimeUnit.MILLISECONDS.toNanos(320);
+  private static final int    MAX_DOUBLINGS = 4;
+  private static final int    RATE_SAMPLE = 64;     // Smallest reply used to measure the byte rate
+  private final Estimator[]   estimators = {new Estimator(), new Estimator(), new Estimator()};
+  private long                defaultTimeout = TimeUnit.MILLISECONDS.toNanos(500);
+  private long                byteTime = 10000000000L / 115200;
+  private int                 rateSamples, timeouts;
+  private int                 syncAttempts = 3, readAttempts = 4;
+
+  enum Kind {COMMAND, PAGE, WRITE}
+
+  private static class Estimator {
+    long  srtt, rttvar;
+    int   samples;
+  }
+
+  /**
+   * Discard all measurements, such as after the bootloader is reset, or the baud rate changes
+   * @param defaultMillis timeout to use until a round trip is measured (also the longest timeout allowed)
+   * @param baudRate baud rate used to estimate the time per byte until it's measured
+   */
+  synchronized void reset (int defaultMillis, int baudRate) {
+    defaultTimeout = TimeUnit.MILLISECONDS.toNanos(defaultMillis);
+    byteTime = 10000000000L / Math.max(baudRate, 300);    // Start bit, 8 data bits and a stop bit
+    for (Estimator est : estimators) {
+      est.samples = 0;
+    }
+    rateSamples = 0;
+    timeouts = 0;
+  }
+
+  /**
+   * @param kind type of command
+   * @param txBytes number of bytes sent
+   * @param rxBytes number of bytes expected in reply
+   * @return time to wait for the complete reply, in nanoseconds
+   */
+  synchronized long getTimeout (Kind kind, int txBytes, int rxBytes) {
+    long transfer = 2 * (txBytes + rxBytes) * byteTime;
+    Estimator est = estimators[kind.ordinal()];
+    if (est.samples == 0) {
+      return defaultTimeout + transfer;
+    }
+    long wait = Math.max(est.srtt + 4 * est.rttvar, MIN_TIMEOUT) << Math.min(timeouts, MAX_DOUBLINGS);
+    return Math.min(wait, defaultTimeout) + transfer;
+  }
+
+  /**
+   * @param kind type of command (the gap between the replies to a batch of page writes is the time taken
+   * to program a page, so it's based on the write round trip, rather than on the command round trip)
+   * @return longest gap allowed between received blocks of a reply once it has started to arrive, in nanoseconds
+   */
+  synchronized long getIdleTimeout (Kind kind) {
+    Estimator est = estimators[(kind == Kind.WRITE ? Kind.WRITE : Kind.COMMAND).ordinal()];
+    if (est.samples == 0) {
+      return IDLE_TIMEOUT;
+    }
+    long wait = Math.max(est.srtt + 4 * est.rttvar + RATE_SAMPLE * byteTime, MIN_TIMEOUT);
+    return Math.min(wait << Math.min(timeouts, MAX_DOUBLINGS), IDLE_TIMEOUT);
+  }
+
+  /**
+   * Record the timing of a successful exchange
+   * @param kind type of command
+   * @param rtt time from sending the command to receiving the first byte of the reply, in nanoseconds
+   * @param transfer time from receiving the first byte to receiving the last byte, in nanoseconds
+   * @param rxBytes number of bytes received
+   */
+  synchronized void update (Kind kind, long rtt, long transfer, int rxBytes) {
+    Estimator est = estimators[kind.ordinal()];
+    if (est.samples++ == 0) {
+      est.srtt = rtt;
+      est.rttvar = rtt / 2;
+    } else {
+      long err = rtt - est.srtt;
+      est.srtt += err / 8;
+      est.rttvar += (Math.abs(err) - est.rttvar) / 4;
+    }
+    if (rxBytes >= RATE_SAMPLE && transfer > 0) {
+      long sample = transfer / rxBytes;
+      byteTime = rateSamples++ == 0 ? sample : byteTime + (sample - byteTime) / 8;
+    }
+    timeouts = 0;
+  }
+
+  /**
+   * Record that an exchange timed out, or lost sync, which doubles the next timeout
+   */
+  synchronized void timedOut () {
+    timeouts++;
+  }
+
+  /**
+   * @param attempt number of failed attempts so far (0 for first retry)
+   * @return time to wait before the next retry, in nanoseconds
+   */
+  long getBackoff (int attempt) {
+    return Math.min(BACKOFF_BASE << Math.min(attempt, 16), BACKOFF_MAX);
+  }
+
+  /**
+   * @return number of times to send the sync, or sign on command before giving up on a protocol
+   */
+  int getSyncAttempts () {
+    return syncAttempts;
+  }
+
+  void setSyncAttempts (int attempts) {
+    syncAttempts = Math.max(1, attempts);
+  }
+
+  /**
+   * @return number of times in a row a read can resync without making progress before it fails
+   */
+  int getReadAttempts () {
+    return readAttempts;
+  }
+
+  void setReadAttempts (int attempts) {
+    readAttempts = Math.max(1, attempts);
+  }
+
+  public synchronized String toString () {
+    Estimator cmd = estimators[Kind.COMMAND.ordinal()];
+    Estimator page = estimators[Kind.PAGE.ordinal()];
+    Estimator write = estimators[Kind.WRITE.ordinal()];
+    return String.format("rtt %.2f/%.2f ms, page rtt %.2f/%.2f ms, write rtt %.2f/%.2f ms, %.1f us/byte, %d timeouts",
+                         cmd.srtt / 1e6, cmd.rttvar / 1e6, page.srtt / 1e6, page.rttvar / 1e6, write.srtt / 1e6,
+                         write.rttvar / 1e6, byteTime / 1e3, timeouts);
+  }
+}
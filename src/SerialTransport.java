@@ -0,0 +1,63 @@
+/**
+ *  Interface for the byte stream used by ArduinoBootDriver to talk to a bootloader.  Implemented by
+ *  JSSCPort for real serial ports and by BootloaderSimulator for testing and benchmarking without hardware
+ *  Author: Wayne Holder, 2019
+ *  License: MIT (https://opensource.org/licenses/MIT)
+ */
+interface SerialTransport {
+  interface RXEvent {
+    /**
+     * Called with each block of bytes received by the port
+     * @param buf buffer holding the received bytes (only valid for the duration of the call)
+     * @param off offset of first received byte in buf[]
+     * @param len number of bytes received
+     */
+    void rxBytes (byte[] buf, int off, int len);
+  }
+
+  /**
+   * @return name of port, or null if no port is selected
+   */
+  String getPortName ();
+
+  /**
+   * @return string that identifies the device attached to the port, as best the platform allows
+   */
+  String getFingerprint ();
+
+  boolean open (RXEvent handler) throws Exception;
+
+  boolean open (RXEvent handler, int baudRate) throws Exception;
+
+  void close ();
+
+  /**
+   * Opens port at 1200 baud and then closes it to signal a Caterina-based board to enter its bootloader
+   * @return true if port reappeared after reset
+   */
+  boolean touch1200 () throws Exception;
+
+  int getBaudRate ();
+
+  void setBaudRate (int baudRate);
+
+  /**
+   * Change the baud rate of the open port without closing it, or changing DTR, so the board isn't reset
+   * @param baudRate new baud rate
+   * @return false if port isn't open, or the rate couldn't be changed
+   */
+  boolean changeBaudRate (int baudRate);
+
+  // Note: true set TTL level to HIGH (DTR off)
+  void setDTR (boolean state);
+
+  void sendBytes (byte[] data) throws Exception;
+
+  /**
+   * Send part of a buffer, so callers can reuse one buffer for commands of any length
+   * @param data buffer holding bytes to send
+   * @param off offset of first byte to send
+   * @param len number of bytes to send
+   */
+  void sendBytes (byte[] data, int off, int len) throws Exception;
+}
@@ -0,0 +1,12 @@
+/**
+ *  Thrown when a bootloader does not respond, or does not support a requested operation
+ *  Author: Wayne Holder, 2019
+ *  License: MIT (https://opensource.org/licenses/MIT)
+ */
+class UnableToComply extends Exception {
+  String  message;
+
+  UnableToComply (String message) {
+    this.message = message;
+  }
+}